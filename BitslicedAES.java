@@ -0,0 +1,581 @@
+/**
+ * BitslicedAES - a constant-time AES-128 engine that encrypts and decrypts up to
+ * 64 blocks at once using only 64-bit boolean operations.
+ *
+ * The table-driven engines (AESEncrypter, TTableEncrypter and friends) look up
+ * the S-box with the secret state as the index, so their memory access pattern,
+ * and hence their timing, depends on the key and the data. This engine never
+ * does that. It transposes a batch of blocks into "bit planes": plane[8*pos + bit]
+ * holds bit number bit of byte pos (in column-major order) of every block, with
+ * block k in bit k of the long. Every AES step then becomes the same sequence of
+ * AND, XOR and shift operations on whole planes, no matter what the data is:
+ *
+ * SubBytes computes the GF(2^8) inverse as x^254 with bitsliced field
+ * multiplications, followed by the affine transform. ShiftRows only renames
+ * planes. MixColumns uses xtime, which on bit planes is a rotation plus two XORs.
+ *
+ * Created from a Key, it also expands the key itself, running SubWord through the
+ * same bitsliced S-box, so no memory access anywhere is indexed by the key or
+ * the data. Created from a KeyExpander, it takes that expander's round keys,
+ * which were computed with S-box table lookups.
+ *
+ * It produces the same output as AESEncrypter and AESDecrypter. It is fastest
+ * when given many blocks per call (e.g. CTR mode or CBC decryption), since a
+ * batch of one block costs about as much as a batch of 64. Working state is
+ * allocated per call, so one instance can be shared between threads.
+ *
+ * @see AESEncrypter
+ * @see AESDecrypter
+ * @author Seb Kryspin
+ * @version 1.0
+ */
+public class BitslicedAES {
+  /** The number of blocks processed together in one batch. */
+  public static final int BATCH_BLOCKS = 64;
+
+  private final long[] keyPlanes = new long[11*128]; //each round key bit, spread across all 64 lanes
+
+  /**
+   * Creates a bitsliced engine from an expanded key. The expander computed its
+   * round keys with S-box lookups, so use the Key constructor where the key
+   * expansion must be constant-time too.
+   *
+   * @param expand the expanded key to use
+   */
+  public BitslicedAES(KeyExpander expand) {
+    spread(expand.getRoundKeyWords());
+  }
+
+  /**
+   * Creates a bitsliced engine for the given key, expanding the key in constant
+   * time with the bitsliced S-box.
+   *
+   * @param k the key to use
+   */
+  public BitslicedAES(Key k) {
+    spread(expandKey(k));
+  }
+
+  //Spreads each bit of the 44 round key columns across all 64 lanes
+  private void spread(int[] words) {
+    for (int i = 0; i < 44; i++) //column i%4 of round i/4
+      for (int row = 0; row < 4; row++)
+        for (int bit = 0; bit < 8; bit++)
+          keyPlanes[i*32 + row*8 + bit] = -(long) ((words[i] >>> (24 - 8*row + bit)) & 1); //all ones or all zeros, without branching
+  }
+
+  /**
+   * Expands a key into 44 packed columns, in the same layout as
+   * KeyExpander.getRoundKeyWords(), computing SubWord with the bitsliced S-box.
+   *
+   * @param k the key to expand
+   * @return the 44 round key columns
+   */
+  private static int[] expandKey(Key k) {
+    short[][] key = k.getKeyValue();
+    int[] words = new int[44];
+    for (int column = 0; column < 4; column++)
+      words[column] = key[0][column] << 24 | key[1][column] << 16 | key[2][column] << 8 | key[3][column];
+    long[] state = new long[128];
+    long[] work = new long[WORK_SIZE];
+    int rcon = 1; //public constants, so ordinary arithmetic is fine
+    for (int i = 4; i < 44; i++) {
+      int temp = words[i - 1];
+      if (i % 4 == 0) {
+        temp = subWord(Integer.rotateLeft(temp, 8), state, work) ^ (rcon << 24);
+        rcon = (rcon << 1) ^ ((rcon >>> 7) * 0x11b);
+      }
+      words[i] = words[i - 4] ^ temp;
+    }
+    return words;
+  }
+
+  //Substitutes the four bytes of a column through subBytes, in lane 0 of positions 0 to 3
+  private static int subWord(int word, long[] state, long[] work) {
+    for (int pos = 0; pos < 4; pos++)
+      for (int bit = 0; bit < 8; bit++)
+        state[pos*8 + bit] = (word >>> (24 - 8*pos + bit)) & 1;
+    subBytes(state, work);
+    int result = 0;
+    for (int pos = 0; pos < 4; pos++)
+      for (int bit = 0; bit < 8; bit++)
+        result |= (int) (state[pos*8 + bit] & 1) << (24 - 8*pos + bit);
+    return result;
+  }
+
+  /**
+   * Encrypts a run of independent 16-byte blocks in column-major byte order,
+   * 64 blocks at a time. in and out may be the same region.
+   *
+   * @param in the array holding the plaintext
+   * @param inOff the offset of the first plaintext block in in
+   * @param out the array that receives the ciphertext
+   * @param outOff the offset in out at which to write the first ciphertext block
+   * @param blocks the number of blocks to encrypt
+   */
+  public void encryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks) {
+    long[] state = new long[128];
+    long[] work = new long[WORK_SIZE];
+    while (blocks > 0) {
+      int n = Math.min(blocks, BATCH_BLOCKS);
+      load(in, inOff, n, state);
+      addRoundKey(state, 0);
+      for (int round = 1; round < 10; round++) {
+        subBytes(state, work);
+        shiftRows(state, work);
+        mixColumns(state, work);
+        addRoundKey(state, round);
+      }
+      subBytes(state, work);
+      shiftRows(state, work);
+      addRoundKey(state, 10);
+      store(state, n, out, outOff);
+      blocks -= n;
+      inOff += n*16;
+      outOff += n*16;
+    }
+  }
+
+  /**
+   * Decrypts a run of independent 16-byte blocks in column-major byte order,
+   * 64 blocks at a time. in and out may be the same region.
+   *
+   * @param in the array holding the ciphertext
+   * @param inOff the offset of the first ciphertext block in in
+   * @param out the array that receives the plaintext
+   * @param outOff the offset in out at which to write the first plaintext block
+   * @param blocks the number of blocks to decrypt
+   */
+  public void decryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks) {
+    long[] state = new long[128];
+    long[] work = new long[WORK_SIZE];
+    while (blocks > 0) {
+      int n = Math.min(blocks, BATCH_BLOCKS);
+      load(in, inOff, n, state);
+      addRoundKey(state, 10);
+      invShiftRows(state, work);
+      invSubBytes(state, work);
+      for (int round = 9; round > 0; round--) {
+        addRoundKey(state, round);
+        invMixColumns(state, work);
+        invShiftRows(state, work);
+        invSubBytes(state, work);
+      }
+      addRoundKey(state, 0);
+      store(state, n, out, outOff);
+      blocks -= n;
+      inOff += n*16;
+      outOff += n*16;
+    }
+  }
+
+  /**
+   * Encrypts a single 16-byte block. This costs as much as a full batch, so
+   * prefer encryptBlocks() when there are several blocks.
+   *
+   * @param in the array holding the plaintext
+   * @param inOff the offset of the plaintext block in in
+   * @param out the array that receives the ciphertext
+   * @param outOff the offset in out at which to write the ciphertext block
+   */
+  public void encryptBlock(byte[] in, int inOff, byte[] out, int outOff) {
+    encryptBlocks(in, inOff, out, outOff, 1);
+  }
+
+  /**
+   * Decrypts a single 16-byte block. This costs as much as a full batch, so
+   * prefer decryptBlocks() when there are several blocks.
+   *
+   * @param in the array holding the ciphertext
+   * @param inOff the offset of the ciphertext block in in
+   * @param out the array that receives the plaintext
+   * @param outOff the offset in out at which to write the plaintext block
+   */
+  public void decryptBlock(byte[] in, int inOff, byte[] out, int outOff) {
+    decryptBlocks(in, inOff, out, outOff, 1);
+  }
+
+  /**
+   * Transposes up to 64 blocks into bit planes. Unused lanes are cleared.
+   *
+   * @param in the array holding the blocks
+   * @param off the offset of the first block
+   * @param n the number of blocks
+   * @param state the 128 planes to fill
+   */
+  private static void load(byte[] in, int off, int n, long[] state) {
+    for (int i = 0; i < 128; i++)
+      state[i] = 0;
+    for (int lane = 0; lane < n; lane++) {
+      for (int pos = 0; pos < 16; pos++) {
+        long value = in[off + lane*16 + pos] & 0xff;
+        for (int bit = 0; bit < 8; bit++)
+          state[pos*8 + bit] |= ((value >>> bit) & 1) << lane;
+      }
+    }
+  }
+
+  /**
+   * Transposes bit planes back into n blocks.
+   *
+   * @param state the 128 planes
+   * @param n the number of blocks
+   * @param out the array to write the blocks to
+   * @param off the offset at which to write the first block
+   */
+  private static void store(long[] state, int n, byte[] out, int off) {
+    for (int lane = 0; lane < n; lane++) {
+      for (int pos = 0; pos < 16; pos++) {
+        int value = 0;
+        for (int bit = 0; bit < 8; bit++)
+          value |= (int) ((state[pos*8 + bit] >>> lane) & 1) << bit;
+        out[off + lane*16 + pos] = (byte) value;
+      }
+    }
+  }
+
+  /**
+   * XORs the round key into every lane of the state.
+   *
+   * @param state the 128 planes
+   * @param round the round number (0 to 10)
+   */
+  private void addRoundKey(long[] state, int round) {
+    int k = round*128;
+    for (int i = 0; i < 128; i++)
+      state[i] ^= keyPlanes[k + i];
+  }
+
+  //layout of the work array: six 8-plane temporaries followed by a 15-plane product
+  private static final int X2 = 0, X3 = 8, X12 = 16, X14 = 24, X15 = 32, T = 40, PRODUCT = 48;
+  private static final int WORK_SIZE = 63;
+
+  /**
+   * Substitutes every byte of the state using the S-box, computed rather than looked up.
+   *
+   * @param state the 128 planes
+   * @param work scratch space of WORK_SIZE longs
+   */
+  private static void subBytes(long[] state, long[] work) {
+    for (int pos = 0; pos < 16; pos++) {
+      int p = pos*8;
+      invert(state, p, work);
+      long x0 = state[p], x1 = state[p+1], x2 = state[p+2], x3 = state[p+3];
+      long x4 = state[p+4], x5 = state[p+5], x6 = state[p+6], x7 = state[p+7];
+      //affine transform: b_i = x_i ^ x_(i+4) ^ x_(i+5) ^ x_(i+6) ^ x_(i+7) ^ c_i with c = 0x63
+      state[p]   = ~(x0 ^ x4 ^ x5 ^ x6 ^ x7);
+      state[p+1] = ~(x1 ^ x5 ^ x6 ^ x7 ^ x0);
+      state[p+2] =   x2 ^ x6 ^ x7 ^ x0 ^ x1;
+      state[p+3] =   x3 ^ x7 ^ x0 ^ x1 ^ x2;
+      state[p+4] =   x4 ^ x0 ^ x1 ^ x2 ^ x3;
+      state[p+5] = ~(x5 ^ x1 ^ x2 ^ x3 ^ x4);
+      state[p+6] = ~(x6 ^ x2 ^ x3 ^ x4 ^ x5);
+      state[p+7] =   x7 ^ x3 ^ x4 ^ x5 ^ x6;
+    }
+  }
+
+  /**
+   * Substitutes every byte of the state using the inverse S-box, computed rather than looked up.
+   *
+   * @param state the 128 planes
+   * @param work scratch space of WORK_SIZE longs
+   */
+  private static void invSubBytes(long[] state, long[] work) {
+    for (int pos = 0; pos < 16; pos++) {
+      int p = pos*8;
+      long x0 = state[p], x1 = state[p+1], x2 = state[p+2], x3 = state[p+3];
+      long x4 = state[p+4], x5 = state[p+5], x6 = state[p+6], x7 = state[p+7];
+      //inverse affine transform: b_i = x_(i+2) ^ x_(i+5) ^ x_(i+7) ^ d_i with d = 0x05
+      state[p]   = ~(x2 ^ x5 ^ x7);
+      state[p+1] =   x3 ^ x6 ^ x0;
+      state[p+2] = ~(x4 ^ x7 ^ x1);
+      state[p+3] =   x5 ^ x0 ^ x2;
+      state[p+4] =   x6 ^ x1 ^ x3;
+      state[p+5] =   x7 ^ x2 ^ x4;
+      state[p+6] =   x0 ^ x3 ^ x5;
+      state[p+7] =   x1 ^ x4 ^ x6;
+      invert(state, p, work);
+    }
+  }
+
+  /**
+   * Replaces the 8 planes at state[p] with their multiplicative inverse in
+   * GF(2^8), computed as x^254 (0 maps to 0). Uses the addition chain
+   * x^2, x^3, x^12, x^14, x^15, x^240, x^254.
+   *
+   * @param state the planes
+   * @param p the index of the first of the 8 planes
+   * @param work scratch space of WORK_SIZE longs
+   */
+  private static void invert(long[] state, int p, long[] work) {
+    square(state, p, work, X2, work);           //x^2
+    multiply(work, X2, state, p, work, X3, work); //x^3
+    square(work, X3, work, T, work);            //x^6
+    square(work, T, work, X12, work);           //x^12
+    multiply(work, X12, work, X2, work, X14, work); //x^14
+    multiply(work, X12, work, X3, work, X15, work); //x^15
+    square(work, X15, work, T, work);           //x^30
+    square(work, T, work, T, work);             //x^60
+    square(work, T, work, T, work);             //x^120
+    square(work, T, work, T, work);             //x^240
+    multiply(work, T, work, X14, state, p, work); //x^254
+  }
+
+  /**
+   * Multiplies two bitsliced bytes over GF(2^8): r = a * b.
+   *
+   * @param a the planes of a
+   * @param ao the index of a's first plane
+   * @param b the planes of b
+   * @param bo the index of b's first plane
+   * @param r the array to write the product to
+   * @param ro the index at which to write the product
+   * @param work scratch space of WORK_SIZE longs
+   */
+  private static void multiply(long[] a, int ao, long[] b, int bo, long[] r, int ro, long[] work) {
+    for (int i = 0; i < 15; i++)
+      work[PRODUCT + i] = 0;
+    for (int i = 0; i < 8; i++)
+      for (int j = 0; j < 8; j++)
+        work[PRODUCT + i + j] ^= a[ao + i] & b[bo + j];
+    reduce(work, r, ro);
+  }
+
+  /**
+   * Squares a bitsliced byte over GF(2^8): r = a * a. Squaring is linear, so
+   * it only spreads the bits out before reducing.
+   *
+   * @param a the planes of a
+   * @param ao the index of a's first plane
+   * @param r the array to write the square to
+   * @param ro the index at which to write the square
+   * @param work scratch space of WORK_SIZE longs
+   */
+  private static void square(long[] a, int ao, long[] r, int ro, long[] work) {
+    for (int i = 0; i < 8; i++) {
+      work[PRODUCT + 2*i] = a[ao + i];
+      if (i < 7)
+        work[PRODUCT + 2*i + 1] = 0;
+    }
+    reduce(work, r, ro);
+  }
+
+  /**
+   * Reduces the 15-plane polynomial in work[PRODUCT] modulo x^8 + x^4 + x^3 + x + 1.
+   *
+   * @param work scratch space holding the product
+   * @param r the array to write the reduced byte to
+   * @param ro the index at which to write it
+   */
+  private static void reduce(long[] work, long[] r, int ro) {
+    for (int k = 14; k >= 8; k--) { //x^8 = x^4 + x^3 + x + 1
+      long t = work[PRODUCT + k];
+      work[PRODUCT + k - 4] ^= t;
+      work[PRODUCT + k - 5] ^= t;
+      work[PRODUCT + k - 7] ^= t;
+      work[PRODUCT + k - 8] ^= t;
+    }
+    for (int i = 0; i < 8; i++)
+      r[ro + i] = work[PRODUCT + i];
+  }
+
+  /**
+   * Performs ShiftRows by moving whole bytes' planes: row r of column c takes
+   * the byte from column c + r.
+   *
+   * @param state the 128 planes
+   * @param work scratch space of at least 48 longs
+   */
+  private static void shiftRows(long[] state, long[] work) {
+    rotateRows(state, work, 1);
+  }
+
+  /**
+   * Performs InvShiftRows by moving whole bytes' planes: row r of column c takes
+   * the byte from column c - r.
+   *
+   * @param state the 128 planes
+   * @param work scratch space of at least 48 longs
+   */
+  private static void invShiftRows(long[] state, long[] work) {
+    rotateRows(state, work, 3);
+  }
+
+  /**
+   * Rotates row r left by r*direction columns for rows 1 to 3.
+   *
+   * @param state the 128 planes
+   * @param work scratch space of at least 32 longs
+   * @param direction 1 for ShiftRows, 3 for InvShiftRows
+   */
+  private static void rotateRows(long[] state, long[] work, int direction) {
+    for (int row = 1; row < 4; row++) {
+      for (int column = 0; column < 4; column++)
+        System.arraycopy(state, (column*4 + row)*8, work, column*8, 8);
+      for (int column = 0; column < 4; column++)
+        System.arraycopy(work, ((column + row*direction) % 4)*8, state, (column*4 + row)*8, 8);
+    }
+  }
+
+  /**
+   * Performs MixColumns on every column of the state.
+   *
+   * Each output byte is r_i = 2(a_i ^ a_(i+1)) ^ a_(i+1) ^ a_(i+2) ^ a_(i+3),
+   * which needs only one xtime per byte.
+   *
+   * @param state the 128 planes
+   * @param work scratch space of at least 40 longs
+   */
+  private static void mixColumns(long[] state, long[] work) {
+    for (int column = 0; column < 4; column++) {
+      int c = column*32;
+      for (int bit = 0; bit < 8; bit++) //t = a0 ^ a1 ^ a2 ^ a3
+        work[32 + bit] = state[c + bit] ^ state[c + 8 + bit] ^ state[c + 16 + bit] ^ state[c + 24 + bit];
+      for (int row = 0; row < 4; row++) {
+        int a = c + row*8;
+        int b = c + ((row + 1) % 4)*8;
+        long d0 = state[a] ^ state[b], d1 = state[a+1] ^ state[b+1], d2 = state[a+2] ^ state[b+2], d3 = state[a+3] ^ state[b+3];
+        long d4 = state[a+4] ^ state[b+4], d5 = state[a+5] ^ state[b+5], d6 = state[a+6] ^ state[b+6], d7 = state[a+7] ^ state[b+7];
+        int w = row*8;
+        //xtime(d) ^ t ^ a_i
+        work[w]   = d7 ^ work[32]   ^ state[a];
+        work[w+1] = d0 ^ d7 ^ work[33] ^ state[a+1];
+        work[w+2] = d1 ^ work[34] ^ state[a+2];
+        work[w+3] = d2 ^ d7 ^ work[35] ^ state[a+3];
+        work[w+4] = d3 ^ d7 ^ work[36] ^ state[a+4];
+        work[w+5] = d4 ^ work[37] ^ state[a+5];
+        work[w+6] = d5 ^ work[38] ^ state[a+6];
+        work[w+7] = d6 ^ work[39] ^ state[a+7];
+      }
+      System.arraycopy(work, 0, state, c, 32);
+    }
+  }
+
+  /**
+   * Performs InvMixColumns on every column of the state.
+   *
+   * InvMixColumns equals MixColumns after first XORing 4(a0 ^ a2) into rows 0
+   * and 2 and 4(a1 ^ a3) into rows 1 and 3, so that is how it is done here.
+   *
+   * @param state the 128 planes
+   * @param work scratch space of at least 40 longs
+   */
+  private static void invMixColumns(long[] state, long[] work) {
+    for (int column = 0; column < 4; column++) {
+      int c = column*32;
+      for (int row = 0; row < 2; row++) {
+        int a = c + row*8;
+        int b = c + (row + 2)*8;
+        for (int bit = 0; bit < 8; bit++)
+          work[bit] = state[a + bit] ^ state[b + bit];
+        xtime(work, 0);
+        xtime(work, 0);
+        for (int bit = 0; bit < 8; bit++) {
+          state[a + bit] ^= work[bit];
+          state[b + bit] ^= work[bit];
+        }
+      }
+    }
+    mixColumns(state, work);
+  }
+
+  /**
+   * Multiplies the bitsliced byte at planes[p] by 2 over GF(2^8), in place.
+   *
+   * @param planes the planes
+   * @param p the index of the first of the 8 planes
+   */
+  private static void xtime(long[] planes, int p) {
+    long high = planes[p+7];
+    for (int bit = 7; bit > 0; bit--)
+      planes[p + bit] = planes[p + bit - 1];
+    planes[p] = high;
+    planes[p+1] ^= high;
+    planes[p+3] ^= high;
+    planes[p+4] ^= high;
+  }
+
+  /**
+   * Checks BitslicedAES against AESEncrypter and AESDecrypter: the Rijndael
+   * inspector and AES Powerpoint examples, then random distinct blocks in every
+   * batch size from 1 to 130, so full, partial and multiple batches are covered.
+   */
+  public static void main(String[] args) {
+    short[][] sampleKey1 ={{0x2b, 0x28, 0xab, 0x09}, {0x7e, 0xae, 0xf7, 0xcf}, {0x15, 0xd2, 0x15, 0x4f}, {0x16, 0xa6, 0x88, 0x3c}};
+    short[][] message1 = {{0x32, 0x88, 0x31, 0xe0}, {0x43, 0x5a, 0x31, 0x37}, {0xf6, 0x30, 0x98, 0x07}, {0xa8, 0x8d, 0xa2, 0x34}};
+    short[][] sampleKey2 ={{0x54, 0x73, 0x20, 0x67},
+                           {0x68, 0x20, 0x4b, 0x20},
+                           {0x61, 0x6d, 0x75, 0x46},
+                           {0x74, 0x79, 0x6e, 0x75}};
+    short[][] message2 ={{0x54, 0x4f, 0x4e, 0x20},
+                         {0x77, 0x6e, 0x69, 0x54},
+                         {0x6f, 0x65, 0x6e, 0x77},
+                         {0x20, 0x20, 0x65, 0x6f}};
+    test("Rijndael Inspector Test Case", sampleKey1, message1); //http://www.formaestudio.com/rijndaelinspector/archivos/rijndaelanimation.html
+    test("AES Example Powerpoint Test Case", sampleKey2, message2); //https://kavaliro.com/wp-content/uploads/2014/03/AES.pdf
+
+    java.util.Random random = new java.util.Random(6);
+    boolean encrypts = true;
+    boolean decrypts = true;
+    boolean expands = true;
+    for (int blocks = 1; blocks <= 2*BATCH_BLOCKS + 2; blocks++) {
+      byte[] keyBytes = new byte[16];
+      random.nextBytes(keyBytes);
+      Key k = new Key(BlockCipherEngines.toMatrix(keyBytes, 0));
+      BitslicedAES bitsliced = new BitslicedAES(k);
+      AESEncrypter encrypter = new AESEncrypter(k);
+      AESDecrypter decrypter = new AESDecrypter(k);
+      expands &= java.util.Arrays.equals(expandKey(k), new KeyExpander(k).getRoundKeyWords());
+      byte[] plaintext = new byte[blocks*16];
+      random.nextBytes(plaintext);
+      byte[] ciphertext = new byte[plaintext.length];
+      bitsliced.encryptBlocks(plaintext, 0, ciphertext, 0, blocks);
+      byte[] decrypted = new byte[plaintext.length];
+      bitsliced.decryptBlocks(ciphertext, 0, decrypted, 0, blocks);
+      for (int b = 0; b < blocks; b++) { //each lane against the reference cipher, so a mixed-up lane shows
+        encrypts &= java.util.Arrays.equals(BlockCipherEngines.toBytes(encrypter.Encrypt(toMatrix(plaintext, b*16))),
+                                            java.util.Arrays.copyOfRange(ciphertext, b*16, b*16 + 16));
+        decrypts &= java.util.Arrays.equals(BlockCipherEngines.toBytes(decrypter.Decrypt(toMatrix(ciphertext, b*16))),
+                                            java.util.Arrays.copyOfRange(plaintext, b*16, b*16 + 16));
+      }
+      decrypts &= java.util.Arrays.equals(decrypted, plaintext);
+    }
+    BlockCipherEngines.check("Bitsliced key expansion == KeyExpander", expands);
+    BlockCipherEngines.check("Batches of 1 to " + (2*BATCH_BLOCKS + 2) + " random blocks == AESEncrypter", encrypts);
+    BlockCipherEngines.check("Batches of 1 to " + (2*BATCH_BLOCKS + 2) + " random blocks == AESDecrypter", decrypts);
+  }
+
+  /**
+   * Encrypts and decrypts one example block and checks it against AESEncrypter.
+   *
+   * @param name the name of the test case
+   * @param key the key as a 4x4 short array
+   * @param message the message as a 4x4 short array
+   */
+  private static void test(String name, short[][] key, short[][] message) {
+    Key k = new Key(key);
+    BitslicedAES bitsliced = new BitslicedAES(k);
+    byte[] block = BlockCipherEngines.toBytes(message);
+    bitsliced.encryptBlock(block, 0, block, 0);
+    short[][] ciphertext = toMatrix(block, 0);
+    bitsliced.decryptBlock(block, 0, block, 0);
+    System.out.println(name + ": Bitsliced Ciphertext: " + new Key(ciphertext));
+    BlockCipherEngines.check(name, java.util.Arrays.deepEquals(ciphertext, new AESEncrypter(k).Encrypt(message))
+                                   && java.util.Arrays.deepEquals(toMatrix(block, 0), message));
+  }
+
+  /**
+   * Converts a 16-byte block in column-major order to a 4x4 short array.
+   *
+   * @param block the array holding the block
+   * @param off the offset of the block
+   * @return the block as a 4x4 short array
+   */
+  private static short[][] toMatrix(byte[] block, int off) {
+    short[][] matrix = new short[4][4];
+    for (int column = 0; column < 4; column++)
+      for (int row = 0; row < 4; row++)
+        matrix[row][column] = (short) (block[off + column*4 + row] & 0xff);
+    return matrix;
+  }
+}
@@ -0,0 +1,80 @@
+/**
+ * BitslicedEngine - a BlockCipherEngine that runs many independent blocks
+ * through BitslicedAES at once, 64 blocks per 64-bit operation.
+ *
+ * Each long in BitslicedAES holds the same bit of 64 different blocks, so one
+ * XOR or AND works on all 64 lanes together: SubBytes is computed lane-wise
+ * and MixColumns is a lane-wise xtime. This is the same idea as a SIMD engine,
+ * with a 64-bit register as the vector.
+ *
+ * A batch costs the same whether it holds 1 block or 64, so when it is created
+ * with a scalar fallback, runs shorter than MIN_BATCH blocks go to the T-table
+ * engine instead. Without the fallback every block is bitsliced, which keeps
+ * the whole engine constant-time; created from a Key, its key expansion is
+ * bitsliced too.
+ *
+ * @see BitslicedAES
+ * @see BlockCipherEngine
+ * @author Seb Kryspin
+ * @version 1.0
+ */
+public class BitslicedEngine implements BlockCipherEngine {
+  /** Runs shorter than this go to the T-table engine when the scalar fallback is on. */
+  public static final int MIN_BATCH = 8;
+
+  private final BitslicedAES bitsliced;
+  private final TTableEncrypter encrypter; //null when there is no scalar fallback
+  private final TTableDecrypter decrypter;
+
+  /**
+   * Creates a bitsliced engine for an expanded key.
+   *
+   * @param schedule the key schedule to use
+   * @param scalarFallback true to send short runs to the (faster, but not
+   * constant-time) T-table engine; false to bitslice every block
+   */
+  public BitslicedEngine(KeySchedule schedule, boolean scalarFallback) {
+    bitsliced = new BitslicedAES(schedule.getExpander());
+    encrypter = scalarFallback ? new TTableEncrypter(schedule) : null;
+    decrypter = scalarFallback ? new TTableDecrypter(schedule) : null;
+  }
+
+  /**
+   * Creates a constant-time engine for a key. The key is expanded by
+   * BitslicedAES itself, without the table lookups KeyExpander uses, and every
+   * block is bitsliced.
+   *
+   * @param k the key to use
+   */
+  public BitslicedEngine(Key k) {
+    bitsliced = new BitslicedAES(k);
+    encrypter = null;
+    decrypter = null;
+  }
+
+  public String getName() {
+    return encrypter == null ? "constant-time" : "bitsliced";
+  }
+
+  public void encryptBlock(byte[] in, int inOff, byte[] out, int outOff) {
+    encryptBlocks(in, inOff, out, outOff, 1);
+  }
+
+  public void decryptBlock(byte[] in, int inOff, byte[] out, int outOff) {
+    decryptBlocks(in, inOff, out, outOff, 1);
+  }
+
+  public void encryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks) {
+    if (encrypter != null && blocks < MIN_BATCH)
+      encrypter.encryptBlocks(in, inOff, out, outOff, blocks);
+    else
+      bitsliced.encryptBlocks(in, inOff, out, outOff, blocks);
+  }
+
+  public void decryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks) {
+    if (decrypter != null && blocks < MIN_BATCH)
+      decrypter.decryptBlocks(in, inOff, out, outOff, blocks);
+    else
+      bitsliced.decryptBlocks(in, inOff, out, outOff, blocks);
+  }
+}
@@ -0,0 +1,98 @@
+/**
+ * BlockCipherEngine - an AES-128 block cipher with a fixed key. Everything that
+ * encrypts or decrypts blocks (the tools and the modes of operation) goes through
+ * this interface, so the implementation underneath can be swapped:
+ *
+ * - ReferenceEngine runs this project's own AESEncrypter and AESDecrypter, and can
+ *   print every step for teaching.
+ * - JCAEngine hands blocks to the JDK's javax.crypto AES, which uses the
+ *   processor's AES instructions (AES-NI) where they exist.
+ *
+ * Use BlockCipherEngines to create one by name. Blocks are 16 bytes in
+ * column-major order, the order the tools read and write them in.
+ *
+ * @see BlockCipherEngines
+ * @author Seb Kryspin
+ * @version 1.0
+ */
+public interface BlockCipherEngine {
+
+  /**
+   * Returns the name this engine is selected by, e.g. "reference" or "jca".
+   *
+   * @return the engine name
+   */
+  String getName();
+
+  /**
+   * Encrypts one 16-byte block. in and out may overlap exactly.
+   *
+   * @param in the array holding the plaintext
+   * @param inOff the offset of the plaintext block in in
+   * @param out the array that receives the ciphertext
+   * @param outOff the offset in out at which to write the ciphertext block
+   */
+  void encryptBlock(byte[] in, int inOff, byte[] out, int outOff);
+
+  /**
+   * Decrypts one 16-byte block. in and out may overlap exactly.
+   *
+   * @param in the array holding the ciphertext
+   * @param inOff the offset of the ciphertext block in in
+   * @param out the array that receives the plaintext
+   * @param outOff the offset in out at which to write the plaintext block
+   */
+  void decryptBlock(byte[] in, int inOff, byte[] out, int outOff);
+
+  /**
+   * Encrypts a run of independent 16-byte blocks. in and out may be the same region.
+   *
+   * @param in the array holding the plaintext
+   * @param inOff the offset of the first plaintext block in in
+   * @param out the array that receives the ciphertext
+   * @param outOff the offset in out at which to write the first ciphertext block
+   * @param blocks the number of blocks to encrypt
+   */
+  default void encryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks) {
+    for (int i = 0; i < blocks; i++)
+      encryptBlock(in, inOff + i*16, out, outOff + i*16);
+  }
+
+  /**
+   * Decrypts a run of independent 16-byte blocks. in and out may be the same region.
+   *
+   * @param in the array holding the ciphertext
+   * @param inOff the offset of the first ciphertext block in in
+   * @param out the array that receives the plaintext
+   * @param outOff the offset in out at which to write the first plaintext block
+   * @param blocks the number of blocks to decrypt
+   */
+  default void decryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks) {
+    for (int i = 0; i < blocks; i++)
+      decryptBlock(in, inOff + i*16, out, outOff + i*16);
+  }
+
+  /**
+   * Encrypts a 4x4 short array of bytes, in the layout AESEncrypter uses.
+   *
+   * @param plaintext a 4x4 array of bytes, but the bytes are cast as shorts
+   * @return a new 4x4 short array containing the ciphertext
+   */
+  default short[][] Encrypt(short[][] plaintext) {
+    byte[] block = BlockCipherEngines.toBytes(plaintext);
+    encryptBlock(block, 0, block, 0);
+    return BlockCipherEngines.toMatrix(block, 0);
+  }
+
+  /**
+   * Decrypts a 4x4 short array of bytes, in the layout AESDecrypter uses.
+   *
+   * @param ciphertext a 4x4 array of bytes, but the bytes are cast as shorts
+   * @return a new 4x4 short array containing the plaintext
+   */
+  default short[][] Decrypt(short[][] ciphertext) {
+    byte[] block = BlockCipherEngines.toBytes(ciphertext);
+    decryptBlock(block, 0, block, 0);
+    return BlockCipherEngines.toMatrix(block, 0);
+  }
+}
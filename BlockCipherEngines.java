@@ -0,0 +1,230 @@
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * BlockCipherEngines - creates BlockCipherEngines by name and checks each kind
+ * of engine against known test vectors before it is first used.
+ *
+ * The engine names are "reference" (AESEncrypter/AESDecrypter), "jca" (the
+ * JDK's AES), "t-table" (TTableEncrypter/TTableDecrypter), "bitsliced"
+ * (BitslicedAES for runs of blocks, T-tables for the rest), "constant-time"
+ * (BitslicedAES for everything) and "vector" (VectorEngine, SIMD registers of
+ * blocks). The tools use the engine named by the system property aes.engine,
+ * or "reference" if it is not set, e.g.
+ *
+ *   java -Daes.engine=jca CBCEncryptTool 1984.txt
+ *
+ * VectorEngine is compiled separately and needs the jdk.incubator.vector
+ * module, so it is loaded by name. If it is missing, or the module was not
+ * added, "vector" gives the T-table engine instead.
+ *
+ * The tools print every step unless the system property aes.trace is "false".
+ *
+ * The self-test uses the Rijndael inspector and AES Powerpoint examples from
+ * AESEncrypter and AESDecrypter, in both directions. An engine that fails it is
+ * never handed out.
+ *
+ * @see BlockCipherEngine
+ * @author Seb Kryspin
+ * @version 1.0
+ */
+public class BlockCipherEngines {
+  /** The system property that names the engine the tools use. */
+  public static final String ENGINE_PROPERTY = "aes.engine";
+
+  /** The system property that turns the tools' step-by-step printing off when "false". */
+  public static final String TRACE_PROPERTY = "aes.trace";
+
+  private static final Set<String> tested = new HashSet<String>(); //engine names that have passed the self-test
+
+  //the known test vectors: key, plaintext, ciphertext
+  private static final short[][][][] vectors = {
+    { //Rijndael Inspector
+      {{0x2b, 0x28, 0xab, 0x09}, {0x7e, 0xae, 0xf7, 0xcf}, {0x15, 0xd2, 0x15, 0x4f}, {0x16, 0xa6, 0x88, 0x3c}},
+      {{0x32, 0x88, 0x31, 0xe0}, {0x43, 0x5a, 0x31, 0x37}, {0xf6, 0x30, 0x98, 0x07}, {0xa8, 0x8d, 0xa2, 0x34}},
+      {{0x39, 0x02, 0xdc, 0x19}, {0x25, 0xdc, 0x11, 0x6a}, {0x84, 0x09, 0x85, 0x0b}, {0x1d, 0xfb, 0x97, 0x32}}},
+    { //AES Example Powerpoint
+      {{0x54, 0x73, 0x20, 0x67}, {0x68, 0x20, 0x4b, 0x20}, {0x61, 0x6d, 0x75, 0x46}, {0x74, 0x79, 0x6e, 0x75}},
+      {{0x54, 0x4f, 0x4e, 0x20}, {0x77, 0x6e, 0x69, 0x54}, {0x6f, 0x65, 0x6e, 0x77}, {0x20, 0x20, 0x65, 0x6f}},
+      {{0x29, 0x57, 0x40, 0x1a}, {0xc3, 0x14, 0x22, 0x02}, {0x50, 0x20, 0x99, 0xd7}, {0x5f, 0xf6, 0xb3, 0x3a}}}
+  };
+
+  /**
+   * Creates the engine named by the aes.engine system property ("reference" if unset).
+   *
+   * @param k the key to use
+   * @param tracer the tracer to report each step to; only the reference engine uses it
+   * @return the engine
+   * @throws IllegalArgumentException if the engine name is unknown
+   * @throws IllegalStateException if the engine fails its self-test
+   */
+  public static BlockCipherEngine create(Key k, RoundTracer tracer) {
+    return create(System.getProperty(ENGINE_PROPERTY, "reference"), k, tracer);
+  }
+
+  /**
+   * Returns the tracer the tools use: a PrintingRoundTracer, or RoundTracer.NONE
+   * if the aes.trace system property is "false".
+   *
+   * @return the tracer
+   */
+  public static RoundTracer tracer() {
+    if (System.getProperty(TRACE_PROPERTY, "true").equals("false"))
+      return RoundTracer.NONE;
+    return new PrintingRoundTracer();
+  }
+
+  /**
+   * Creates an engine by name, running its self-test first if it has not passed yet.
+   *
+   * @param name "reference", "jca", "t-table", "bitsliced", "constant-time" or "vector"
+   * @param k the key to use
+   * @param tracer the tracer to report each step to; only the reference engine uses it
+   * @return the engine
+   * @throws IllegalArgumentException if the engine name is unknown
+   * @throws IllegalStateException if the engine fails its self-test
+   */
+  public static BlockCipherEngine create(String name, Key k, RoundTracer tracer) {
+    selfTest(name);
+    return newEngine(name, k, tracer);
+  }
+
+  /**
+   * Checks an engine against the known test vectors, once per engine name.
+   *
+   * @param name the engine name
+   * @throws IllegalArgumentException if the engine name is unknown
+   * @throws IllegalStateException if the engine gives a wrong result
+   */
+  public static void selfTest(String name) {
+    synchronized (tested) {
+      if (tested.contains(name))
+        return;
+    }
+    for (short[][][] vector : vectors) {
+      BlockCipherEngine engine = newEngine(name, new Key(vector[0]), RoundTracer.NONE);
+      byte[] plaintext = toBytes(vector[1]);
+      byte[] ciphertext = toBytes(vector[2]);
+      byte[] block = new byte[16];
+      engine.encryptBlock(plaintext, 0, block, 0);
+      if (!java.util.Arrays.equals(block, ciphertext))
+        throw new IllegalStateException("The " + name + " engine failed its encryption self-test.");
+      engine.decryptBlock(ciphertext, 0, block, 0);
+      if (!java.util.Arrays.equals(block, plaintext))
+        throw new IllegalStateException("The " + name + " engine failed its decryption self-test.");
+    }
+    synchronized (tested) {
+      tested.add(name);
+    }
+  }
+
+  /**
+   * Creates an engine by name without testing it.
+   *
+   * @param name the engine name
+   * @param k the key to use
+   * @param tracer the tracer, for the reference engine
+   * @return the engine
+   * @throws IllegalArgumentException if the engine name is unknown
+   */
+  private static BlockCipherEngine newEngine(String name, Key k, RoundTracer tracer) {
+    if (name.equals("reference"))
+      return new ReferenceEngine(KeyScheduleCache.shared().get(k), tracer);
+    else if (name.equals("jca"))
+      return new JCAEngine(k);
+    else if (name.equals("t-table"))
+      return new TTableEngine(KeyScheduleCache.shared().get(k));
+    else if (name.equals("bitsliced"))
+      return new BitslicedEngine(KeyScheduleCache.shared().get(k), true);
+    else if (name.equals("constant-time"))
+      return new BitslicedEngine(k);
+    else if (name.equals("vector"))
+      return newVectorEngine(KeyScheduleCache.shared().get(k));
+    else
+      throw new IllegalArgumentException("Unknown AES engine \"" + name + "\". Use reference, jca, t-table, bitsliced, constant-time or vector.");
+  }
+
+  /**
+   * Creates a VectorEngine if it was compiled and the jdk.incubator.vector
+   * module is present, and a TTableEngine otherwise.
+   *
+   * @param schedule the key schedule to use
+   * @return the engine
+   */
+  private static BlockCipherEngine newVectorEngine(KeySchedule schedule) {
+    try {
+      return (BlockCipherEngine) Class.forName("VectorEngine").getConstructor(KeySchedule.class).newInstance(schedule);
+    }
+    catch (ReflectiveOperationException | LinkageError e) { //not compiled, or run without --add-modules jdk.incubator.vector
+      return new TTableEngine(schedule);
+    }
+  }
+
+  /**
+   * Converts a 4x4 short array to 16 bytes in column-major order.
+   *
+   * @param matrix a 4x4 array of bytes, cast as shorts
+   * @return a new array of 16 bytes
+   */
+  public static byte[] toBytes(short[][] matrix) {
+    byte[] block = new byte[16];
+    toBytes(matrix, block, 0);
+    return block;
+  }
+
+  /**
+   * Writes a 4x4 short array as 16 bytes in column-major order.
+   *
+   * @param matrix a 4x4 array of bytes, cast as shorts
+   * @param out the array to write to
+   * @param off the offset at which to write
+   */
+  public static void toBytes(short[][] matrix, byte[] out, int off) {
+    for (int c = 0; c < 4; c++)
+      for (int r = 0; r < 4; r++)
+        out[off + c*4 + r] = (byte) matrix[r][c];
+  }
+
+  /**
+   * Reads 16 bytes in column-major order as a 4x4 short array.
+   *
+   * @param block the array to read from
+   * @param off the offset of the block
+   * @return a new 4x4 short array
+   */
+  public static short[][] toMatrix(byte[] block, int off) {
+    short[][] matrix = new short[4][4];
+    for (int c = 0; c < 4; c++)
+      for (int r = 0; r < 4; r++)
+        matrix[r][c] = (short) (block[off + c*4 + r] & 0xff);
+    return matrix;
+  }
+
+  /**
+   * Prints the result of one check in a self-test main, as "test: passed" or
+   * "test: FAILED".
+   *
+   * @param test what was checked
+   * @param passed whether the check passed
+   */
+  public static void check(String test, boolean passed) {
+    System.out.println(test + ": " + (passed ? "passed" : "FAILED"));
+  }
+
+  /**
+   * Runs the self-test on every engine and prints the results.
+   */
+  public static void main(String[] args) {
+    String[] names = {"reference", "jca", "t-table", "bitsliced", "constant-time", "vector"};
+    for (String name : names) {
+      try {
+        selfTest(name);
+        String actual = newEngine(name, new Key(), RoundTracer.NONE).getName(); //"vector" may fall back to "t-table"
+        System.out.println(name + " engine: passed" + (actual.equals(name) ? "" : " (as " + actual + ")"));
+      }
+      catch (IllegalStateException e) {
+        System.out.println(name + " engine: " + e.getMessage());
+      }
+    }
+  }
+}
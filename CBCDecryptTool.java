@@ -1,7 +1,8 @@
 import java.io.*;
 import java.lang.Integer;
 import java.util.Scanner;
-import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 //https://www.geeksforgeeks.org/different-ways-reading-text-file-java/
 //https://docs.oracle.com/javase/8/docs/api/java/io/BufferedReader.html
@@ -14,105 +15,194 @@ import java.util.ArrayList;
  *
  * You can use a file in any directory as long as the path is correct.
  *
+ * The ciphertext is streamed through fixed buffers of BUFFER_BLOCKS blocks, so a
+ * file of any size takes the same memory.
+ *
+ * Each CBC plaintext block depends only on its own ciphertext block and the
+ * one before it, so when no steps are being printed (aes.trace=false, or an
+ * engine other than the reference engine) the blocks are decrypted in
+ * parallel ranges on a ForkJoinPool.
  *
  * @see AESDecrypter
+ * @see BlockCipherEngines
  * @see EncryptTool
  * @author Seb Kryspin
  * @version 1.0
  */
 public class CBCDecryptTool {
+  /** The number of blocks read, decrypted and written at a time. */
+  public static final int BUFFER_BLOCKS = 4096;
+
+  /** The number of blocks each parallel decryption task handles. */
+  public static final int PARALLEL_BLOCKS = 1024;
+
 
   /**
    * Decrypts the specified file using AES, and saves the decryption to basename
-   *  + "_decrypted.txt"
+   *  + "_decrypted.txt". The file may be hex (with the IV in a separate file) or a
+   * binary CipherContainer (with the IV in its header), which is recognized by its
+   * magic number.
    *
    * @param filename the name of the file to be decrypted, or the path if
    * the file is not in the current directory
    * @param keyname the name of the file containing the key, formatted as 16 hex bytes separated by spaces.
-   * @param iVectorFileName the name of the file containing the initialization vector, or IV
+   * @param iVectorFileName the name of the file containing the initialization vector, or IV;
+   * ignored, and may be null, if filename is a container
    * @throws FileNotFoundException if one of the files is not found
-   * @throws IOException if an I/O error occurs
+   * @throws IOException if an I/O error occurs, or a container holds more or less ciphertext than its header says
    */
   public static void decryptFile(String filename, String keyname, String iVectorFileName) throws FileNotFoundException, IOException{
 
-    ArrayList<short[][]> ciphertext = readCiphertextFile(filename);           //Reads the ciphertext file
+    boolean binary = CipherContainer.isContainer(filename);
+    HexCodec.Decoder reader = null;     //the hex ciphertext, or
+    InputStream raw = null;             //the container's raw ciphertext
+    CipherContainer container = null;
+    if (binary) {
+      raw = new BufferedInputStream(new FileInputStream(filename));
+      container = CipherContainer.read(raw);
+      if (container.getMode() != CipherContainer.MODE_CBC)
+        throw new IOException(filename + " is not a CBC container; use MappedFileTool for CTR containers.");
+    }
+    else
+      reader = new HexCodec.Decoder(new FileReader(filename));           //Opens the ciphertext file
 
     short[][] keyArray = readKeyorIVFile(keyname);     //Reads the Key file
-    short[][] iVector = readKeyorIVFile(iVectorFileName);  //reads the IV file
-
+    byte[] iVector = binary ? container.getIV() : BlockCipherEngines.toBytes(readKeyorIVFile(iVectorFileName));  //reads the IV file
 
-    AESDecrypter aes = new AESDecrypter(new Key(keyArray));
-    int n = ciphertext.size();
 
-    ArrayList<short[][]> decrypted = new ArrayList<short[][]>(n);
+    RoundTracer tracer = BlockCipherEngines.tracer();
+    BlockCipherEngine aes = BlockCipherEngines.create(new Key(keyArray), tracer);
+    boolean parallel = tracer == RoundTracer.NONE || !aes.getName().equals("reference"); //nothing is printed, so blocks can be decrypted out of order
 
-    //cbc mode decryption
-    short[][] previous = iVector;
-    short[][] untouchedBlock = new short[4][4];
-    short[][] newBlock = new short[4][4];
+    String writename = filename.replace("_encrypted.txt", "_decrypted.txt").replace("_encrypted" + CipherContainer.EXTENSION, "_decrypted.txt");
+    if (writename.equals(filename))
+      writename = filename + "_decrypted.txt";
+    OutputStream writer = new BufferedOutputStream(new FileOutputStream(writename));
 
-
-    for (int i = 0; i < n; i++){
-      untouchedBlock = ciphertext.get(i); //an untouched block of ciphertext
-      newBlock = XOR(aes.Decrypt(untouchedBlock), previous); //a fully decrypted block of ciphertext
-      previous = untouchedBlock;
-      decrypted.add(i, newBlock);            //Encrypts the message
+    //cbc mode decryption, BUFFER_BLOCKS blocks at a time
+    byte[] in = new byte[BUFFER_BLOCKS * 16];
+    byte[] out = new byte[BUFFER_BLOCKS * 16];
+    byte[] previous = iVector; //the last ciphertext block of the previous buffer, or the IV
+    long remaining = binary ? container.getPayloadLength() : Long.MAX_VALUE; //plaintext bytes still to write; the container's padding is dropped
+    long count = 0;
+    int n;
+    System.out.println("Reading " + filename + "...  ");
+    while ((n = binary ? readRawBlocks(raw, in, filename) : readCiphertextBlocks(reader, in, filename)) > 0) {
+      if (parallel)
+        decryptParallel(aes, previous, in, 0, out, 0, n);
+      else {
+        for (int i = 0; i < n * 16; i += 16){
+          aes.decryptBlock(in, i, out, i); //a fully decrypted block of ciphertext
+          for (int j = 0; j < 16; j++)
+            out[i + j] ^= (i == 0 ? previous[j] : in[i - 16 + j]);
+        }
+      }
+      System.arraycopy(in, (n - 1) * 16, previous, 0, 16);
+      int w = (int) Math.min(n * 16, remaining);
+      writer.write(out, 0, w);
+      remaining = remaining - w;
+      count = count + n;
+    }
+    if (binary)
+      raw.close();
+    else
+      reader.close();
+    writer.close();
+    if (binary && count * 16 != container.getCiphertextLength()) { //cut off (or padded out) on a block boundary
+      new File(writename).delete();
+      throw new IOException("The ciphertext in " + filename + " is " + count * 16 + " bytes, but its header says "
+                            + container.getCiphertextLength() + ".");
     }
 
+    System.out.println("# Of Blocks: " + count);
+    System.out.println("Decrypted " + filename + " to file " + writename);
+  }
 
-    String writename = filename.replace("_encrypted.txt", "_decrypted.txt");
+  /**
+   * Decrypts CBC ciphertext on the common ForkJoinPool. The blocks are split into
+   * ranges of PARALLEL_BLOCKS; each range is decrypted with one decryptBlocks
+   * call and then XORed with the ciphertext block before each block (or the IV,
+   * for the first block). in and out must not overlap.
+   *
+   * @param aes the engine to decrypt with; must be safe to share between threads
+   * @param iv the 16-byte initialization vector
+   * @param in the array holding the ciphertext
+   * @param inOff the offset of the first ciphertext block in in
+   * @param out the array that receives the plaintext
+   * @param outOff the offset in out at which to write the first plaintext block
+   * @param blocks the number of blocks to decrypt
+   */
+  public static void decryptParallel(BlockCipherEngine aes, byte[] iv, byte[] in, int inOff, byte[] out, int outOff, int blocks) {
+    ForkJoinPool.commonPool().invoke(new DecryptRange(aes, iv, in, inOff, out, outOff, 0, blocks));
+  }
 
+  //Splits a range of blocks in half until it is at most PARALLEL_BLOCKS long, then decrypts it
+  private static class DecryptRange extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final BlockCipherEngine aes;
+    private final byte[] iv, in, out;
+    private final int inOff, outOff, from, to;
 
-    writeDecryptedToFile(writename, decrypted);
+    DecryptRange(BlockCipherEngine aes, byte[] iv, byte[] in, int inOff, byte[] out, int outOff, int from, int to) {
+      this.aes = aes;
+      this.iv = iv;
+      this.in = in;
+      this.inOff = inOff;
+      this.out = out;
+      this.outOff = outOff;
+      this.from = from;
+      this.to = to;
+    }
 
-    System.out.println("Decrypted " + filename + " to file " + writename);
+    protected void compute() {
+      if (to - from > PARALLEL_BLOCKS) {
+        int middle = (from + to) >>> 1;
+        invokeAll(new DecryptRange(aes, iv, in, inOff, out, outOff, from, middle),
+                  new DecryptRange(aes, iv, in, inOff, out, outOff, middle, to));
+        return;
+      }
+      aes.decryptBlocks(in, inOff + from*16, out, outOff + from*16, to - from);
+      for (int i = from; i < to; i++) {
+        byte[] previous = i == 0 ? iv : in; //the IV, or the ciphertext block before this one
+        int previousOff = i == 0 ? 0 : inOff + (i - 1)*16;
+        for (int j = 0; j < 16; j++)
+          out[outOff + i*16 + j] ^= previous[previousOff + j];
+      }
+    }
   }
 
   /**
-   * Returns the XOR of two 4x4 short arrays.
+   * Reads up to buf.length / 16 blocks of raw ciphertext from a container.
    *
-   * @param one a short[4][4] array
-   * @param two a short[4][4] array
-   * @return a 4x4 short array where each result[i][j] = one[i][j] ^ two[i][j]
+   * @param raw the container, positioned after the header
+   * @param buf the buffer to read the blocks into
+   * @param filename the file name, for error messages
+   * @return the number of blocks read, 0 at the end of the file
+   * @throws IOException if the ciphertext is not a whole number of blocks
    */
-  private static short[][] XOR(short[][] one, short[][] two) {
-    short[][] result = new short[4][4];
-    for (int c = 0; c < 4; c++){
-      for (int r = 0; r < 4; r++){
-        result[r][c] = (new Integer(one[r][c] ^ two[r][c])).shortValue(); //XOR array 1 with array 2
-      }
-    }
-    return result;
+  private static int readRawBlocks(InputStream raw, byte[] buf, String filename) throws IOException {
+    int n = raw.readNBytes(buf, 0, buf.length);
+    if (n % 16 != 0)
+      throw new IOException("The ciphertext in " + filename + " is truncated.");
+    return n / 16;
   }
 
   /**
-   * Reads a ciphertext file of up to 1600 hex byte strings, and returns the text in a 4x4 array.
+   * Reads up to buf.length / 16 blocks of hex byte strings from a ciphertext file.
    *
-   * @param filename the file to read from
-   * @return the ciphertext in an ArrayList of 4x4 array of shorts
-   * @throws FileNotFoundException if a file could not be found
-   * @throws IOException if an I/O exception occurs
+   * @param reader the decoder over the ciphertext file
+   * @param buf the buffer to read the blocks into
+   * @param filename the file name, for error messages
+   * @return the number of blocks read, 0 at the end of the file
+   * @throws IOException if an I/O error occurs
+   * @throws NumberFormatException if the file is not a whole number of blocks of hex bytes
    */
-  private static ArrayList<short[][]> readCiphertextFile(String filename) throws FileNotFoundException, IOException{
+  private static int readCiphertextBlocks(HexCodec.Decoder reader, byte[] buf, String filename) throws IOException {
     try {
-      File fileOne = new File(filename);
-      Scanner reader = new Scanner(fileOne);
-      ArrayList<short[][]> ciphertext = new ArrayList<short[][]>();
-
-      int count = 0; //make sure we don't keep reading forever
-      while (reader.hasNext() && count < 100) {
-        short[][] block = new short[4][4];
-        for (int c = 0; c < 4; c++){
-          for (int r = 0; r < 4; r++){
-            block[r][c] = Short.parseShort(reader.next(), 16);
-          }
-        }
-        ciphertext.add(count, block);
-        count = count + 1; //increment block count
-      }
-      System.out.println("Reading " + filename + "...  ");
-      reader.close();
-      return ciphertext;
+      int n = reader.read(buf, 0, buf.length);
+      if (n % 16 != 0)
+        throw new NumberFormatException();
+      return n / 16;
     }
     catch (NumberFormatException e) {
       throw new NumberFormatException("File " + filename + " could not be read as a ciphertext. Please ensure the ciphertext is properly formatted.");
@@ -147,33 +237,11 @@ public class CBCDecryptTool {
     }
   }
 
-  /**
-   * Writes an ArrayList of 4x4 short arrays containing decrypted values to filename + "_decrypted.txt" as characters
-   *
-   * @param filename the full name of the file to write to
-   * @param encrypted the ArrayList of short[][]s to read from
-   */
-  private static void writeDecryptedToFile(String filename, ArrayList<short[][]> decrypted) throws FileNotFoundException, IOException {
-    File fileOne = new File(filename);
-    BufferedWriter writer = new BufferedWriter(new FileWriter(fileOne));
-    int n = decrypted.size();
-    System.out.println("# Of Blocks: " + decrypted.size());
-
-    for (int i = 0; i < n; i++) {
-      for (int c = 0; c < 4; c++){
-        for (int r = 0; r < 4; r++){
-          writer.write((char) decrypted.get(i)[r][c]);
-        }
-      }
-    }
-    writer.close();
-  }
-
-
   /**
    * Decrypts a file using the specified key and IV files.
    *
    * @param args args[0] is the ciphertext file, args[1] is the key file, and args[2] is the IV file
+   * (not needed if args[0] is a binary container)
    * @throws IOException if an I/O error occurs
    */
   public static void main(String[] args) throws IOException{
@@ -183,7 +251,7 @@ public class CBCDecryptTool {
 
         String key = args[1];
 
-        String iVector = args[2];
+        String iVector = CipherContainer.isContainer(file) ? null : args[2]; //a container holds its own IV
 
         decryptFile(file,key,iVector);
       }
@@ -192,7 +260,7 @@ public class CBCDecryptTool {
       }
     }
     catch (ArrayIndexOutOfBoundsException e) {
-      System.out.println("You must specify  a .txt file to be encrypted, a key file, and an IV file on the command line.");
+      System.out.println("You must specify  a .txt file to be encrypted, a key file, and an IV file on the command line (no IV file for a binary container).");
     }
     catch (NumberFormatException e) {
       System.out.println(e.getMessage());
@@ -1,19 +1,22 @@
 import java.io.*;
 import java.lang.Integer;
 import java.util.Scanner;
-import java.util.ArrayList;
+import java.util.Arrays;
 //https://www.geeksforgeeks.org/different-ways-reading-text-file-java/
 //https://docs.oracle.com/javase/8/docs/api/java/io/BufferedReader.html
 
 
 /**
- * Encrypts a character .txt file up to 1600 characters with AES and saves its encryption to a new
+ * Encrypts a .txt file of any length with AES in CBC mode and saves its encryption to a new
  * file in the same directory as the original file, with the original name + _encrypted.txt.
  *
  * You can use a file in any directory as long as the path is correct.
  *
+ * The file is streamed through a fixed buffer, so memory use does not grow with
+ * its size, and the encryption is written as it is read.
  *
  * @see AESEncrypter
+ * @see BlockCipherEngines
  * @see EncryptTool
  * @author Seb Kryspin
  * @version 1.0
@@ -21,6 +24,9 @@ import java.util.ArrayList;
 public class CBCEncryptTool {
 
 
+  /** The number of blocks read, encrypted and written at a time. */
+  public static final int BUFFER_BLOCKS = 4096;
+
   /**
    * Encrypts the specified file using AES with a specified key from a file, and returns
    * the name of the encrypted file.
@@ -34,26 +40,7 @@ public class CBCEncryptTool {
    * @throws IOException if a file was improperly formatted
    */
   public static String encryptFile(String filename, String keyname) throws FileNotFoundException, IOException{
-    ArrayList<short[][]> message = readMessageFile(filename);           //Reads the Message file
-
-    short[][] keyArray = readKeyFile(keyname);                //Reads the Key file
-
-    AESEncrypter aes = new AESEncrypter(new Key(keyArray)); //Creates a new AESEncrypter with the specified key
-    int n = message.size();
-
-    ArrayList<short[][]> encrypted = new ArrayList<short[][]>(n);
-    short[][] prev = writeIVToFile(filename); //generates an IV and writes it;
-
-    for (int i = 0; i < n; i++){
-      short[][] plaintext = message.get(i);
-      prev = aes.Encrypt(XOR(prev, plaintext)); //uses the previous block's encryption and XORS it with the plaintext
-      encrypted.add(i, prev); //adds the array to the list of blocks
-
-    }
-    System.out.println("# of Blocks: " + encrypted.size());
-    writeEncryptedToFile(filename, encrypted);                  //writes the _encrypted file
-    return filename; //returns the base filename
-
+    return encryptFile(filename, keyname, false);
   }
 
   /**
@@ -66,79 +53,177 @@ public class CBCEncryptTool {
    * @throws FileNotFoundException if filename is not found
    */
   public static String encryptFile(String filename) throws FileNotFoundException, IOException{
-    ArrayList<short[][]> message = readMessageFile(filename);           //Reads the Message file
-    Key randomKey = new Key();
-    writeKeyToFile(filename, randomKey.getKeyValue());
-    AESEncrypter aes = new AESEncrypter(randomKey); //Creates a new AESEncrypter with the specified key
-    int n = message.size();
+    return encryptFile(filename, null, false);
+  }
 
-    //CBC Encryption with iVector, message, and aes
-    ArrayList<short[][]> encrypted = new ArrayList<short[][]>(n);
-    short[][] prev = writeIVToFile(filename); //generates an IV and writes it
+  /**
+   * Encrypts the specified file using AES, and returns the name of the encrypted file.
+   * The encryption is saved either as hex in filename + "_encrypted.txt" with the IV in
+   * filename + "_IV.txt", or as a binary CipherContainer in filename + "_encrypted.aes"
+   * with the IV in its header.
+   *
+   * @param filename the base name of the file to be encrypted, or the path if
+   * the file is not in the current directory
+   * @param keyname the base name of the key file, or null to use a random key, which is
+   * stored in filename + "_key.txt"
+   * @param binary true to write a CipherContainer, false to write hex
+   * @return the base file name
+   * @throws FileNotFoundException if filename or keyname file is not found
+   * @throws IOException if an I/O error occurs, or the file changed length while a container was being written
+   */
+  public static String encryptFile(String filename, String keyname, boolean binary) throws FileNotFoundException, IOException{
+    InputStream message = openMessageFile(filename);           //Opens the Message file
+    long length = new File(filename + ".txt").length();
 
-    for (int i = 0; i < n; i++){
-      short[][] plaintext = message.get(i);
-      prev = aes.Encrypt(XOR(prev, plaintext)); //uses the previous block's encryption and XORS it with the plaintext
-      encrypted.add(i, prev); //adds the array to the list of blocks
+    Key key;
+    if (keyname != null)
+      key = new Key(readKeyFile(keyname));                //Reads the Key file
+    else {
+      key = new Key();
+      writeKeyToFile(filename, key.getKeyValue());
     }
-    System.out.println("# of Blocks: " + encrypted.size());
-    writeEncryptedToFile(filename, encrypted);
+    BlockCipherEngine aes = BlockCipherEngines.create(key, BlockCipherEngines.tracer()); //Creates the configured engine with the specified key
 
-    return filename;
+    //CBC Encryption with iVector, message, and aes
+    long n;
+    if (binary) {
+      CipherContainer container = new CipherContainer(CipherContainer.MODE_CBC, CTRDRBG.current().nextBytes(16), length);
+      n = encryptToContainer(filename, message, aes, container);
+    }
+    else {
+      short[][] prev = writeIVToFile(filename); //generates an IV and writes it
+      n = encryptToFile(filename, message, aes, prev);                  //encrypts and writes the _encrypted file as it reads
+    }
+    System.out.println("# of Blocks: " + n);
+    return filename; //returns the base filename
   }
 
   /**
-   * Returns the XOR of two 4x4 short arrays.
+   * Opens a message file for reading.
    *
-   * @param one a 4x4 short array
-   * @param two a 4x4 short array
-   * @return a 4x4 short array where each result[i][j] = one[i][j] ^ two[i][j]
+   * @param filename the base name of the file to read from
+   * @return a buffered stream of the file's bytes
+   * @throws FileNotFoundException if the file is not found
    */
-  private static short[][] XOR(short[][] one, short[][] two) {
-    short[][] result = new short[4][4];
-    for (int c = 0; c < 4; c++){
-      for (int r = 0; r < 4; r++){
-        result[r][c] = (new Integer(one[r][c] ^ two[r][c])).shortValue(); //XOR array 1 with array 2
-      }
-    }
-    return result;
+  private static InputStream openMessageFile(String filename) throws FileNotFoundException {
+    InputStream reader = new BufferedInputStream(new FileInputStream(filename + ".txt"));
+    System.out.println("Reading " + filename + ".txt...  ");
+    return reader;
   }
 
+  /**
+   * Encrypts a message in CBC mode and writes it to filename + "_encrypted.txt" as hex
+   * bytes separated by spaces. The message is read, chained, encrypted and written
+   * BUFFER_BLOCKS blocks at a time through one reused buffer, so a file of any size
+   * takes the same memory. The last block is padded with zeros.
+   *
+   * @param filename the base name of the file to write to
+   * @param message the message; it is closed when it has been read
+   * @param aes the engine to encrypt with
+   * @param iVector the IV
+   * @return the number of blocks written
+   * @throws IOException if an I/O error occurs
+   */
+  private static long encryptToFile(String filename, InputStream message, BlockCipherEngine aes, short[][] iVector) throws IOException {
+    File fileOne = new File(filename + "_encrypted.txt");
+    BufferedWriter writer = new BufferedWriter(new FileWriter(fileOne));
+    System.out.println("Writing to " + filename + "_encrypted.txt...  ");
+
+    byte[] buffer = new byte[BUFFER_BLOCKS * 16];
+    byte[] prev = BlockCipherEngines.toBytes(iVector); //the previous ciphertext block
+    long count = 0;
+    int n;
+    while ((n = readAndEncrypt(message, aes, buffer, prev)) > 0) {
+      int blocks = (n + 15) / 16;
+      HexCodec.encode(buffer, 0, blocks * 16, writer);
+      count = count + blocks; //increment block count
+    }
+    message.close();
+    writer.close();
+    return count;
+  }
 
   /**
-   * Reads a message file of up to 1600 ASCII characters, and returns the message in an ArrayList
-   * of 4x4 arrays of shorts.
+   * Encrypts a message in CBC mode and writes it to filename + "_encrypted.aes" as a
+   * CipherContainer: the header, then the raw ciphertext, BUFFER_BLOCKS blocks at a time.
    *
-   * @param filename the file to read from
-   * @return the message in an arrayList of 4x4 arrays of shorts
-   * @throws FileNotFoundException
-   * @throws IOException
+   * The header's message length is taken before the message is read, so the bytes
+   * actually read are counted and checked against it at the end. If the file grew or
+   * shrank in between, the container is deleted rather than left with a wrong length.
+   *
+   * @param filename the base name of the file to write to
+   * @param message the message; it is closed when it has been read
+   * @param aes the engine to encrypt with
+   * @param container the header, holding the IV and the message length
+   * @return the number of blocks written
+   * @throws IOException if an I/O error occurs, or the message length differs from the header's
    */
-  private static ArrayList<short[][]> readMessageFile(String filename) throws FileNotFoundException, IOException{
-    File fileOne = new File(filename + ".txt");
-    BufferedReader reader = new BufferedReader(new FileReader(fileOne));
-    ArrayList<short[][]> message = new ArrayList<short[][]>();
+  private static long encryptToContainer(String filename, InputStream message, BlockCipherEngine aes, CipherContainer container) throws IOException {
+    String writename = filename + "_encrypted" + CipherContainer.EXTENSION;
+    OutputStream writer = new BufferedOutputStream(new FileOutputStream(writename));
+    System.out.println("Writing to " + writename + "...  ");
+    container.write(writer);
 
-    short[][] block;
-    int count = 0; //make sure we don't keep reading forever
-    while (reader.ready() && count < 100) {
-      block = new short[4][4];
-      for (int c = 0; c < 4; c++){
-        for (int r = 0; r < 4; r++){
-          if (reader.ready()) {
-            block[r][c] = (short) reader.read();
-          }
-          else {
-            block[r][c] = 0; //padding
-          }
-        }
-      }
-      message.add(count, block);
-      count = count + 1; //increment block count
+    byte[] buffer = new byte[BUFFER_BLOCKS * 16];
+    byte[] prev = container.getIV(); //the previous ciphertext block
+    long count = 0;
+    long length = 0; //the message bytes read
+    int n;
+    while ((n = readAndEncrypt(message, aes, buffer, prev)) > 0) {
+      int blocks = (n + 15) / 16;
+      writer.write(buffer, 0, blocks * 16);
+      count = count + blocks;
+      length = length + n;
     }
-    System.out.println("Reading " + filename + ".txt...  ");
-    reader.close();
-    return message;
+    message.close();
+    writer.close();
+    if (length != container.getPayloadLength()) { //the file changed after its length was taken
+      new File(writename).delete();
+      throw new IOException("Read " + length + " bytes from " + filename + ".txt, but the header says "
+                            + container.getPayloadLength() + "; the file changed while it was being encrypted.");
+    }
+    return count;
+  }
+
+  /**
+   * Reads the next buffer of a message, pads it to whole blocks with zeros, and
+   * CBC-encrypts it in place.
+   *
+   * @param message the message
+   * @param aes the engine to encrypt with
+   * @param buffer the buffer to read into and encrypt
+   * @param prev the previous ciphertext block (or the IV); updated to the last block encrypted
+   * @return the number of message bytes read, 0 at the end of the message; (n + 15) / 16
+   * blocks were encrypted
+   * @throws IOException if an I/O error occurs
+   */
+  private static int readAndEncrypt(InputStream message, BlockCipherEngine aes, byte[] buffer, byte[] prev) throws IOException {
+    int n = readFully(message, buffer);
+    int blocks = (n + 15) / 16;
+    Arrays.fill(buffer, n, blocks * 16, (byte) 0); //padding
+    for (int i = 0; i < blocks * 16; i += 16) {
+      for (int j = 0; j < 16; j++)
+        buffer[i + j] ^= prev[j]; //XORs the previous block's encryption with the plaintext
+      aes.encryptBlock(buffer, i, buffer, i);
+      System.arraycopy(buffer, i, prev, 0, 16);
+    }
+    return n;
+  }
+
+  /**
+   * Reads from a stream until the buffer is full or the stream ends.
+   *
+   * @param in the stream to read from
+   * @param buffer the buffer to fill
+   * @return the number of bytes read, 0 at the end of the stream
+   * @throws IOException if an I/O error occurs
+   */
+  private static int readFully(InputStream in, byte[] buffer) throws IOException {
+    int n = 0;
+    int r;
+    while (n < buffer.length && (r = in.read(buffer, n, buffer.length - n)) > 0)
+      n += r;
+    return n;
   }
 
 
@@ -175,7 +260,7 @@ public class CBCEncryptTool {
    * @throws IOException
    */
   private static short[][] writeIVToFile(String filename) throws FileNotFoundException, IOException{
-    short[][] keyValue = (new Key()).getKeyValue(); //makes a random IV to save
+    short[][] keyValue = BlockCipherEngines.toMatrix(CTRDRBG.current().nextBytes(16), 0); //makes a random IV to save
     BufferedWriter writer = new BufferedWriter(new FileWriter(filename+"_IV.txt"));
     int i = 0;
     int[] keyBuf = new int[16];
@@ -221,44 +306,21 @@ public class CBCEncryptTool {
     System.out.println("Saved randomly generated key in " + filename+"_key.txt");
   }
 
-  /**
-   * Writes a 2d array of shorts containing encrypted values to filename + "_encrypted.txt"
-   * as hex bytes separated by spaces.
-   *
-   * @param filename the base name of the file to write to
-   * @param encrypted the ArrayList of short[][]s to read from
-   * @throws FileNotFoundException
-   * @throws IOException
-   */
-  private static void writeEncryptedToFile(String filename, ArrayList<short[][]> encrypted) throws FileNotFoundException, IOException {
-    File fileOne = new File(filename + "_encrypted.txt");
-    BufferedWriter writer = new BufferedWriter(new FileWriter(fileOne));
-    int n = encrypted.size();
-
-    for (int i = 0; i < n; i++) {
-      for (int c = 0; c < 4; c++){
-        for (int r = 0; r < 4; r++){
-          writer.write(String.format("%02X", encrypted.get(i)[r][c]));
-          writer.write(' ');
-        }
-      }
-    }
-
-    System.out.println("Writing to " + filename + "_encrypted.txt...  ");
-    writer.close();
-  }
-
-
   /**
    * Encrypts a file from the command line with a key from a file, or uses a
-   * random key if no key file is provided.
+   * random key if no key file is provided. With -binary anywhere on the command
+   * line, the encryption is saved as a binary CipherContainer instead of hex.
    *
    * @param args an array containing the plaintext filename at 0 and, optionally, the key
-   * filename at 1.
+   * filename at 1, plus the -binary option.
    * @throws FileNotFoundException if one of the files is not found
    * @throws IOException if an I/O error occurs
    */
   public static void main(String[] args) throws FileNotFoundException, IOException{
+    boolean binary = Arrays.asList(args).contains("-binary");
+    if (binary) {
+      args = Arrays.stream(args).filter(a -> !a.equals("-binary")).toArray(String[]::new);
+    }
     try {
       //getting the plaintext message file
       try {
@@ -269,11 +331,11 @@ public class CBCEncryptTool {
           String key = args[1];
           key = key.replace(".txt", "");
 
-          encryptFile(file,key);
+          encryptFile(file,key,binary);
         }
         catch (ArrayIndexOutOfBoundsException e) {
           System.out.println("Since no key file was provided, we will encrypt with a random key, which we store in" + file+ "_key.txt in the same directory as the plaintext.");
-          encryptFile(file);
+          encryptFile(file,null,binary);
         }
       }
       catch (FileNotFoundException e){
@@ -282,7 +344,7 @@ public class CBCEncryptTool {
 
     }
       catch (ArrayIndexOutOfBoundsException e) {
-        System.out.println("You must specify a .txt file to be encrypted. You may also specify a key file to use.");
+        System.out.println("You must specify a .txt file to be encrypted. You may also specify a key file to use, and -binary to save a binary container instead of hex.");
       }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,183 @@
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * CFBMode - AES in 128-bit cipher feedback (CFB-128) mode, as in NIST SP 800-38A.
+ * Each ciphertext block is the plaintext XORed with the encryption of the
+ * previous ciphertext block (the IV, for the first block). The last block may be
+ * partial, so messages of any length can be processed without padding.
+ *
+ * Encryption is serial, like CBC. Decryption is not: plaintext block i needs only
+ * ciphertext blocks i and i-1, so decrypt splits the message into ranges on a
+ * ForkJoinPool. Each range is turned into keystream with one encryptBlocks call.
+ *
+ * @see CBCDecryptTool
+ * @see BlockCipherEngine
+ * @author Seb Kryspin
+ * @version 1.0
+ */
+public class CFBMode {
+  /** The number of blocks each parallel decryption task handles. */
+  public static final int PARALLEL_BLOCKS = 4096;
+
+  private final BlockCipherEngine engine;
+  private final ForkJoinPool pool;
+
+  /**
+   * Creates a CFB mode over the configured engine (see BlockCipherEngines),
+   * using the common ForkJoinPool.
+   *
+   * @param k the key to use
+   */
+  public CFBMode(Key k) {
+    this(BlockCipherEngines.create(k, RoundTracer.NONE), ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Creates a CFB mode over the given engine and pool.
+   *
+   * @param engine the block cipher; must be safe to share between threads
+   * @param pool the pool decryption runs on
+   */
+  public CFBMode(BlockCipherEngine engine, ForkJoinPool pool) {
+    this.engine = engine;
+    this.pool = pool;
+  }
+
+  /**
+   * Encrypts len bytes. in and out may be the same region.
+   *
+   * @param iv the 16-byte initialization vector
+   * @param in the array holding the plaintext
+   * @param inOff the offset of the plaintext in in
+   * @param out the array that receives the ciphertext
+   * @param outOff the offset in out at which to write the ciphertext
+   * @param len the number of bytes to encrypt
+   */
+  public void encrypt(byte[] iv, byte[] in, int inOff, byte[] out, int outOff, int len) {
+    checkIV(iv);
+    byte[] feedback = iv.clone();
+    for (int i = 0; i < len; i += 16) {
+      engine.encryptBlock(feedback, 0, feedback, 0);
+      int n = Math.min(16, len - i);
+      for (int j = 0; j < n; j++) {
+        feedback[j] ^= in[inOff + i + j]; //the keystream becomes the ciphertext, which is the next feedback
+        out[outOff + i + j] = feedback[j];
+      }
+    }
+  }
+
+  /**
+   * Decrypts len bytes in parallel. in and out must not overlap.
+   *
+   * @param iv the 16-byte initialization vector
+   * @param in the array holding the ciphertext
+   * @param inOff the offset of the ciphertext in in
+   * @param out the array that receives the plaintext
+   * @param outOff the offset in out at which to write the plaintext
+   * @param len the number of bytes to decrypt
+   */
+  public void decrypt(byte[] iv, byte[] in, int inOff, byte[] out, int outOff, int len) {
+    checkIV(iv);
+    int blocks = (len + 15) / 16;
+    if (blocks == 0)
+      return;
+    if (blocks <= PARALLEL_BLOCKS)
+      decryptRange(iv, in, inOff, out, outOff, len, 0, blocks);
+    else
+      pool.invoke(new DecryptRange(iv, in, inOff, out, outOff, len, 0, blocks));
+  }
+
+  //Decrypts blocks from (inclusive) to to (exclusive) of a len-byte message
+  private void decryptRange(byte[] iv, byte[] in, int inOff, byte[] out, int outOff, int len, int from, int to) {
+    byte[] keystream = new byte[(to - from) * 16];
+    if (from == 0) { //the feedback is the IV, then the ciphertext shifted along one block
+      System.arraycopy(iv, 0, keystream, 0, 16);
+      System.arraycopy(in, inOff, keystream, 16, keystream.length - 16);
+    }
+    else
+      System.arraycopy(in, inOff + (from - 1)*16, keystream, 0, keystream.length);
+    engine.encryptBlocks(keystream, 0, keystream, 0, to - from);
+    int n = Math.min(to*16, len) - from*16;
+    for (int j = 0; j < n; j++)
+      out[outOff + from*16 + j] = (byte) (in[inOff + from*16 + j] ^ keystream[j]);
+  }
+
+  private static void checkIV(byte[] iv) {
+    if (iv.length != 16)
+      throw new IllegalArgumentException("The IV must be 16 bytes, not " + iv.length + ".");
+  }
+
+  //Splits a range of blocks in half until it is at most PARALLEL_BLOCKS long, then decrypts it
+  private class DecryptRange extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final byte[] iv, in, out;
+    private final int inOff, outOff, len, from, to;
+
+    DecryptRange(byte[] iv, byte[] in, int inOff, byte[] out, int outOff, int len, int from, int to) {
+      this.iv = iv;
+      this.in = in;
+      this.inOff = inOff;
+      this.out = out;
+      this.outOff = outOff;
+      this.len = len;
+      this.from = from;
+      this.to = to;
+    }
+
+    protected void compute() {
+      if (to - from > PARALLEL_BLOCKS) {
+        int middle = (from + to) >>> 1;
+        invokeAll(new DecryptRange(iv, in, inOff, out, outOff, len, from, middle),
+                  new DecryptRange(iv, in, inOff, out, outOff, len, middle, to));
+        return;
+      }
+      decryptRange(iv, in, inOff, out, outOff, len, from, to);
+    }
+  }
+
+  /**
+   * Checks CFB mode against the SP 800-38A example and against the JDK's
+   * AES/CFB for a large odd-length message, in both directions.
+   */
+  public static void main(String[] args) throws Exception {
+    //NIST SP 800-38A F.3.13, CFB128-AES128.Encrypt
+    byte[] keyBytes = HexCodec.fromHex("2b7e151628aed2a6abf7158809cf4f3c");
+    byte[] iv = HexCodec.fromHex("000102030405060708090a0b0c0d0e0f");
+    byte[] plaintext = HexCodec.fromHex("6bc1bee22e409f96e93d7e117393172aae2d8a571e03ac9c9eb76fac45af8e51"
+                                      + "30c81c46a35ce411e5fbc1191a0a52eff69f2445df4f9b17ad2b417be66c3710");
+    String expected = "3b3fd92eb72dad20333449f8e83cfb4ac8a64537a0b3a93fcde3cdad9f1ce58b"
+                    + "26751f67a3cbb140b1808cf187a4f4dfc04b05357c5d1c0eeac4c66f9ff7f2e6";
+    CFBMode cfb = new CFBMode(new Key(BlockCipherEngines.toMatrix(keyBytes, 0)));
+    byte[] ciphertext = new byte[plaintext.length];
+    cfb.encrypt(iv, plaintext, 0, ciphertext, 0, plaintext.length);
+    byte[] decrypted = new byte[plaintext.length];
+    cfb.decrypt(iv, ciphertext, 0, decrypted, 0, ciphertext.length);
+    BlockCipherEngines.check("SP 800-38A F.3.13", HexCodec.toHex(ciphertext).equals(expected) && Arrays.equals(decrypted, plaintext));
+
+    SecureRandom random = new SecureRandom();
+    random.nextBytes(keyBytes);
+    random.nextBytes(iv);
+    byte[] message = new byte[4 * 1024 * 1024 + 7];
+    random.nextBytes(message);
+    cfb = new CFBMode(new Key(BlockCipherEngines.toMatrix(keyBytes, 0)));
+    ciphertext = new byte[message.length];
+    cfb.encrypt(iv, message, 0, ciphertext, 0, message.length);
+    Cipher jdk = Cipher.getInstance("AES/CFB/NoPadding");
+    jdk.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(keyBytes, "AES"), new IvParameterSpec(iv));
+    BlockCipherEngines.check("Encrypt == JDK AES/CFB", Arrays.equals(ciphertext, jdk.doFinal(message)));
+    decrypted = new byte[message.length];
+    cfb.decrypt(iv, ciphertext, 0, decrypted, 0, ciphertext.length);
+    BlockCipherEngines.check("Parallel decrypt", Arrays.equals(decrypted, message));
+
+    byte[] empty = new byte[0];
+    cfb.encrypt(iv, empty, 0, empty, 0, 0);
+    cfb.decrypt(iv, empty, 0, empty, 0, 0);
+    BlockCipherEngines.check("Empty input", true); //reached only if neither call threw
+  }
+}
@@ -0,0 +1,131 @@
+/**
+ * CMAC - the AES-CMAC message authentication code (NIST SP 800-38B, RFC 4493).
+ * The message is CBC-encrypted with a zero IV and only the last block is kept.
+ * Before that, the last block is XORed with subkey K1 if it is complete, or
+ * padded with 10...0 and XORed with K2 if not. The subkeys are E(0) doubled
+ * once and twice in GF(2^128).
+ *
+ * CMAC is serial, like CBC encryption. PMAC gives the same kind of tag with
+ * blocks that can be processed in parallel.
+ *
+ * @see PMAC
+ * @see BlockCipherEngine
+ * @author Seb Kryspin
+ * @version 1.0
+ */
+public class CMAC {
+  /** The length of a CMAC tag in bytes. */
+  public static final int TAG_LENGTH = 16;
+
+  private final BlockCipherEngine engine;
+  private final byte[] k1;
+  private final byte[] k2;
+
+  /**
+   * Creates a CMAC over the configured engine (see BlockCipherEngines).
+   *
+   * @param k the key to use
+   */
+  public CMAC(Key k) {
+    this(BlockCipherEngines.create(k, RoundTracer.NONE));
+  }
+
+  /**
+   * Creates a CMAC over AESEncrypter with an expanded key.
+   *
+   * @param schedule the key schedule to use
+   */
+  public CMAC(KeySchedule schedule) {
+    this(new ReferenceEngine(schedule, RoundTracer.NONE));
+  }
+
+  /**
+   * Creates a CMAC over the given engine, and derives its subkeys.
+   *
+   * @param engine the block cipher
+   */
+  public CMAC(BlockCipherEngine engine) {
+    this.engine = engine;
+    byte[] l = new byte[16];
+    engine.encryptBlock(l, 0, l, 0);
+    k1 = dbl(l);
+    k2 = dbl(k1);
+  }
+
+  /**
+   * Computes the tag of a message.
+   *
+   * @param message the array holding the message
+   * @param off the offset of the message
+   * @param len the length of the message in bytes; may be zero
+   * @return the 16-byte tag
+   */
+  public byte[] mac(byte[] message, int off, int len) {
+    byte[] x = new byte[16];
+    int blocks = Math.max(1, (len + 15) / 16);
+    for (int i = 0; i < blocks - 1; i++) {
+      for (int j = 0; j < 16; j++)
+        x[j] ^= message[off + i*16 + j];
+      engine.encryptBlock(x, 0, x, 0);
+    }
+    int last = len - (blocks - 1)*16; //bytes in the last block, 0 to 16
+    for (int j = 0; j < last; j++)
+      x[j] ^= message[off + (blocks - 1)*16 + j];
+    if (last == 16)
+      xor(x, k1);
+    else {
+      x[last] ^= (byte) 0x80;
+      xor(x, k2);
+    }
+    engine.encryptBlock(x, 0, x, 0);
+    return x;
+  }
+
+  /**
+   * Computes the tag of a whole array.
+   *
+   * @param message the message
+   * @return the 16-byte tag
+   */
+  public byte[] mac(byte[] message) {
+    return mac(message, 0, message.length);
+  }
+
+  /**
+   * Returns a block doubled in GF(2^128) with the big-endian convention of CMAC and
+   * PMAC: shifted left one bit, and reduced by XORing 0x87 into the last byte if a
+   * bit was shifted out.
+   *
+   * @param block a 16-byte block; it is not modified
+   * @return a new 16-byte block
+   */
+  static byte[] dbl(byte[] block) {
+    byte[] result = new byte[16];
+    for (int i = 0; i < 15; i++)
+      result[i] = (byte) ((block[i] << 1) | ((block[i + 1] & 0xff) >>> 7));
+    result[15] = (byte) ((block[15] << 1) ^ ((block[0] >> 7) & 0x87));
+    return result;
+  }
+
+  static void xor(byte[] into, byte[] with) {
+    for (int i = 0; i < 16; i++)
+      into[i] ^= with[i];
+  }
+
+  /**
+   * Checks CMAC against the four AES-128 examples in RFC 4493.
+   */
+  public static void main(String[] args) {
+    Key key = new Key(BlockCipherEngines.toMatrix(HexCodec.fromHex("2b7e151628aed2a6abf7158809cf4f3c"), 0));
+    CMAC cmac = new CMAC(key);
+    String message = "6bc1bee22e409f96e93d7e117393172aae2d8a571e03ac9c9eb76fac45af8e51"
+                   + "30c81c46a35ce411e5fbc1191a0a52eff69f2445df4f9b17ad2b417be66c3710";
+    int[] lengths = {0, 16, 40, 64};
+    String[] tags = {"bb1d6929e95937287fa37d129b756746", "070a16b46b4d4144f79bdd9dd04a287c",
+                     "dfa66747de9ae63030ca32611497c827", "51f0bebf7e3b9d92fc49741779363cfe"};
+    for (int i = 0; i < lengths.length; i++) {
+      byte[] tag = cmac.mac(HexCodec.fromHex(message.substring(0, lengths[i] * 2)));
+      BlockCipherEngines.check("RFC 4493 example " + (i + 1) + " (" + lengths[i] + " bytes)", HexCodec.toHex(tag).equals(tags[i]));
+    }
+  }
+}
@@ -0,0 +1,205 @@
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * CTRDRBG - a deterministic random bit generator built on AES-128 in counter
+ * mode, following CTR_DRBG without a derivation function from NIST SP 800-90A.
+ * The state is an AES key K and a counter V. Output is E(K, V+1), E(K, V+2), ...
+ * and after every request K and V are replaced by fresh keystream (the update
+ * step), so earlier output cannot be recovered from the state.
+ *
+ * Each thread gets its own generator from current(), seeded once from a shared
+ * SecureRandom and reseeded from it every RESEED_INTERVAL requests. Output is
+ * produced BUFFER_BLOCKS blocks at a time and handed out from a buffer, so a
+ * key or IV usually costs a copy, and at most a few cipher calls.
+ *
+ * Keys and IVs made by Key() and CBCEncryptTool come from here.
+ *
+ * @see Key
+ * @see SecureRandom
+ * @author Seb Kryspin
+ * @version 1.0
+ */
+public class CTRDRBG {
+  /** The number of generate requests between reseeds. */
+  public static final int RESEED_INTERVAL = 1 << 16;
+
+  /** The number of blocks each generate request fills the buffer with. */
+  public static final int BUFFER_BLOCKS = 64;
+
+  private static final int SEED_LENGTH = 32; //the key length plus the block length
+
+  private static final SecureRandom entropy = new SecureRandom(); //shared; only touched to seed and reseed
+  private static final ThreadLocal<CTRDRBG> perThread = ThreadLocal.withInitial(CTRDRBG::new);
+
+  private TTableEncrypter cipher; //E(K, .)
+  private final byte[] v = new byte[16];
+  private long reseedCounter;
+  private final byte[] buffer = new byte[BUFFER_BLOCKS * 16];
+  private int position = buffer.length; //the next unused byte of buffer
+
+  /**
+   * Returns the calling thread's generator.
+   *
+   * @return the generator for this thread
+   */
+  public static CTRDRBG current() {
+    return perThread.get();
+  }
+
+  /**
+   * Creates a generator seeded from the shared SecureRandom.
+   */
+  public CTRDRBG() {
+    this(seed(), new byte[0]);
+  }
+
+  /**
+   * Creates a generator from the given seed, with the SP 800-90A instantiate
+   * function. The same seed always gives the same output, which is what the
+   * known-answer test relies on.
+   *
+   * @param entropyInput 32 bytes of seed material
+   * @param personalization up to 32 bytes XORed into the seed; may be empty
+   */
+  public CTRDRBG(byte[] entropyInput, byte[] personalization) {
+    if (entropyInput.length != SEED_LENGTH)
+      throw new IllegalArgumentException("The seed must be " + SEED_LENGTH + " bytes, not " + entropyInput.length + ".");
+    if (personalization.length > SEED_LENGTH)
+      throw new IllegalArgumentException("The personalization string may be at most " + SEED_LENGTH + " bytes.");
+    byte[] seedMaterial = entropyInput.clone();
+    for (int i = 0; i < personalization.length; i++)
+      seedMaterial[i] ^= personalization[i];
+    cipher = new TTableEncrypter(new Key(new short[4][4])); //K = 0, V = 0
+    update(seedMaterial);
+    reseedCounter = 1;
+  }
+
+  /**
+   * Fills an array with random bytes.
+   *
+   * @param bytes the array to fill
+   */
+  public void nextBytes(byte[] bytes) {
+    int done = 0;
+    while (done < bytes.length) {
+      if (position == buffer.length) {
+        generate(buffer);
+        position = 0;
+      }
+      int n = Math.min(bytes.length - done, buffer.length - position);
+      System.arraycopy(buffer, position, bytes, done, n);
+      Arrays.fill(buffer, position, position + n, (byte) 0); //handed-out bytes are not kept
+      position += n;
+      done += n;
+    }
+  }
+
+  /**
+   * Returns n random bytes.
+   *
+   * @param n the number of bytes
+   * @return a new array of n random bytes
+   */
+  public byte[] nextBytes(int n) {
+    byte[] bytes = new byte[n];
+    nextBytes(bytes);
+    return bytes;
+  }
+
+  /**
+   * Mixes fresh seed material from the shared SecureRandom into the state, and
+   * drops anything still buffered.
+   */
+  public void reseed() {
+    update(seed());
+    reseedCounter = 1;
+    Arrays.fill(buffer, (byte) 0);
+    position = buffer.length;
+  }
+
+  /**
+   * The SP 800-90A generate function: fills out (a multiple of 16 bytes) with
+   * E(K, V+1), E(K, V+2), ... in one encryptBlocks call, then updates K and V.
+   *
+   * @param out the array to fill
+   */
+  public void generate(byte[] out) {
+    if (reseedCounter > RESEED_INTERVAL)
+      reseed();
+    keystream(out);
+    update(new byte[SEED_LENGTH]);
+    reseedCounter++;
+  }
+
+  //The SP 800-90A update function: K || V = (E(K, V+1) || E(K, V+2)) ^ providedData
+  private void update(byte[] providedData) {
+    byte[] temp = new byte[SEED_LENGTH];
+    keystream(temp);
+    for (int i = 0; i < SEED_LENGTH; i++)
+      temp[i] ^= providedData[i];
+    cipher = new TTableEncrypter(new Key(BlockCipherEngines.toMatrix(temp, 0)));
+    System.arraycopy(temp, 16, v, 0, 16);
+  }
+
+  //Fills out with the encryptions of V+1, V+2, ..., leaving V at the last counter used
+  private void keystream(byte[] out) {
+    for (int b = 0; b < out.length; b += 16) {
+      CTRMode.increment(v, 1);
+      System.arraycopy(v, 0, out, b, 16);
+    }
+    cipher.encryptBlocks(out, 0, out, 0, out.length / 16);
+  }
+
+  private static byte[] seed() {
+    byte[] seed = new byte[SEED_LENGTH];
+    synchronized (entropy) {
+      entropy.nextBytes(seed);
+    }
+    return seed;
+  }
+
+  /**
+   * Runs a CAVP-style known-answer test (instantiate, generate twice, compare the
+   * second output), checks that threads get different streams, and compares the
+   * cost of making keys and IVs with the cost of a new SecureRandom per key.
+   */
+  public static void main(String[] args) throws Exception {
+    //CAVP CTR_DRBG AES-128 no df, no prediction resistance, count 0
+    CTRDRBG kat = new CTRDRBG(HexCodec.fromHex("ce50f33da5d4c1d3d4004eb35244b7f2cd7f2e5076fbf6780a7ff634b249a5fc"), new byte[0]);
+    byte[] bits = new byte[64];
+    kat.generate(bits);
+    kat.generate(bits);
+    BlockCipherEngines.check("SP 800-90A known answer", HexCodec.toHex(bits).equals(
+      "6545c0529d372443b392ceb3ae3a99a30f963eaf313280f1d1a1e87f9db373d3"
+      + "61e75d18018266499cccd64d9bbb8de0185f213383080faddec46bae1f784e5a"));
+
+    byte[][] firstIVs = new byte[2][];
+    Thread[] threads = new Thread[2];
+    for (int t = 0; t < 2; t++) {
+      final int index = t;
+      threads[t] = new Thread(() -> firstIVs[index] = CTRDRBG.current().nextBytes(16));
+      threads[t].start();
+    }
+    for (Thread t : threads)
+      t.join();
+    BlockCipherEngines.check("Threads get different streams", !Arrays.equals(firstIVs[0], firstIVs[1]));
+
+    int n = 100000;
+    for (int run = 0; run < 3; run++) {
+      long t = System.nanoTime();
+      for (int i = 0; i < n; i++) {
+        new Key();
+        CTRDRBG.current().nextBytes(16);
+      }
+      long drbg = System.nanoTime() - t;
+      t = System.nanoTime();
+      for (int i = 0; i < n; i++) {
+        new SecureRandom().nextBytes(new byte[16]);
+        new SecureRandom().nextBytes(new byte[16]);
+      }
+      long secure = System.nanoTime() - t;
+      System.out.printf("%d keys and IVs: DRBG %d ms, new SecureRandom each %d ms%n", n, drbg / 1000000, secure / 1000000);
+    }
+  }
+}
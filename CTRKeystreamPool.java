@@ -0,0 +1,282 @@
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * CTRKeystreamPool - CTR mode keystream for one key and one initial counter,
+ * generated ahead of time on a background thread into a bounded ring buffer.
+ * Encrypting a small message is then just an XOR with keystream that is already
+ * there, which takes the block cipher off the caller's critical path.
+ *
+ * Each message takes the next whole blocks of the keystream, and encrypt returns
+ * the block offset it started at. The receiver decrypts with CTRMode, starting
+ * from the initial counter plus that offset. If a message needs more keystream
+ * than is buffered (an underrun), the caller generates the rest itself. The
+ * background thread then carries on after it, so no keystream block is ever
+ * used twice.
+ *
+ * The background thread tops the ring up whenever it drains to half full, so it
+ * wakes once per half-ring of traffic rather than once per message.
+ *
+ * The pool counts hits (messages served entirely from the buffer) and underruns,
+ * so the capacity can be sized for the load.
+ *
+ * @see CTRMode
+ * @author Seb Kryspin
+ * @version 1.0
+ */
+public class CTRKeystreamPool implements AutoCloseable {
+  /** The capacity the Key constructor uses, in blocks. */
+  public static final int DEFAULT_CAPACITY = 4096;
+
+  private static final int BATCH = 64; //blocks the background thread generates per engine call
+
+  private final BlockCipherEngine engine;
+  private final byte[] counter; //the initial counter block
+  private final byte[] ring;
+  private final int capacity;
+  private final Thread producer;
+
+  //guarded by this: the ring holds keystream blocks next (inclusive) to filled (exclusive)
+  private long next;
+  private long filled;
+  private long hits;
+  private long underruns;
+  private long blocksServed;
+  private long blocksGeneratedInline;
+  private boolean refilling = true; //false while the producer sleeps until the ring drains to half full
+  private boolean closed;
+
+  /**
+   * Creates a pool of DEFAULT_CAPACITY blocks over the configured engine (see
+   * BlockCipherEngines), and starts filling it.
+   *
+   * @param k the key to use
+   * @param counter the 16-byte initial counter block; it must never be reused with this key
+   */
+  public CTRKeystreamPool(Key k, byte[] counter) {
+    this(BlockCipherEngines.create(k, RoundTracer.NONE), counter, DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Creates a pool over the given engine, and starts filling it.
+   *
+   * @param engine the block cipher; must be safe to share between threads
+   * @param counter the 16-byte initial counter block; it must never be reused with this key
+   * @param capacity the number of keystream blocks the ring holds
+   */
+  public CTRKeystreamPool(BlockCipherEngine engine, byte[] counter, int capacity) {
+    if (counter.length != 16)
+      throw new IllegalArgumentException("The counter block must be 16 bytes, not " + counter.length + ".");
+    if (capacity < BATCH)
+      throw new IllegalArgumentException("The capacity must be at least " + BATCH + " blocks, not " + capacity + ".");
+    this.engine = engine;
+    this.counter = counter.clone();
+    this.capacity = capacity;
+    ring = new byte[capacity * 16];
+    producer = new Thread(this::fill, "CTR keystream pool");
+    producer.setDaemon(true);
+    producer.start();
+  }
+
+  /**
+   * Encrypts (or decrypts) a message with the next len bytes of keystream, rounded
+   * up to whole blocks. in and out may be the same region.
+   *
+   * @param in the input array
+   * @param inOff the offset of the input in in
+   * @param out the output array
+   * @param outOff the offset in out at which to write the output
+   * @param len the number of bytes to process
+   * @return the block offset of the message in the keystream, to send with it
+   */
+  public long encrypt(byte[] in, int inOff, byte[] out, int outOff, int len) {
+    int blocks = (len + 15) / 16;
+    long start;
+    int buffered;
+    synchronized (this) {
+      if (closed)
+        throw new IllegalStateException("The keystream pool is closed.");
+      start = next;
+      buffered = (int) Math.min(blocks, filled - next);
+      int n = Math.min(len, buffered * 16); //XORs what is buffered while the ring slots are still ours
+      int pos = (int) (start % capacity) * 16;
+      int first = Math.min(n, ring.length - pos); //up to the end of the ring, then from its start
+      for (int i = 0; i < first; i++)
+        out[outOff + i] = (byte) (in[inOff + i] ^ ring[pos + i]);
+      for (int i = first; i < n; i++)
+        out[outOff + i] = (byte) (in[inOff + i] ^ ring[i - first]);
+      next = start + blocks;
+      if (buffered < blocks) { //skips the producer past the blocks this caller generates itself
+        filled = next;
+        underruns++;
+        blocksGeneratedInline += blocks - buffered;
+      }
+      else
+        hits++;
+      blocksServed += blocks;
+      if (!refilling && filled - next <= capacity / 2) { //wakes the producer only at the low-water mark
+        refilling = true;
+        notifyAll();
+      }
+    }
+    if (buffered < blocks) {
+      int done = buffered * 16;
+      byte[] keystream = counterBlocks(start + buffered, blocks - buffered);
+      engine.encryptBlocks(keystream, 0, keystream, 0, blocks - buffered);
+      for (int i = done; i < len; i++)
+        out[outOff + i] = (byte) (in[inOff + i] ^ keystream[i - done]);
+    }
+    return start;
+  }
+
+  /**
+   * Returns the initial counter block.
+   *
+   * @return a copy of the initial counter block
+   */
+  public byte[] getCounter() {return counter.clone();}
+
+  /**
+   * Returns the number of messages served entirely from the buffer.
+   *
+   * @return the hit count
+   */
+  public synchronized long getHits() {return hits;}
+
+  /**
+   * Returns the number of messages that needed keystream the buffer did not have yet.
+   *
+   * @return the underrun count
+   */
+  public synchronized long getUnderruns() {return underruns;}
+
+  /**
+   * Returns the number of keystream blocks the callers had to generate themselves.
+   *
+   * @return the number of blocks generated on underruns
+   */
+  public synchronized long getBlocksGeneratedInline() {return blocksGeneratedInline;}
+
+  /**
+   * Returns the number of keystream blocks buffered and ready.
+   *
+   * @return the number of buffered blocks
+   */
+  public synchronized int getBuffered() {return (int) (filled - next);}
+
+  /**
+   * Stops the background thread. Later calls to encrypt throw IllegalStateException.
+   */
+  public void close() {
+    synchronized (this) {
+      closed = true;
+      notifyAll();
+    }
+    producer.interrupt();
+  }
+
+  /**
+   * Returns the metrics as a String.
+   *
+   * @return the hits, underruns and blocks served
+   */
+  public synchronized String toString() {
+    return "CTRKeystreamPool[hits=" + hits + ", underruns=" + underruns + ", blocksServed=" + blocksServed
+         + ", blocksGeneratedInline=" + blocksGeneratedInline + ", buffered=" + (filled - next) + "/" + capacity + "]";
+  }
+
+  //The background thread: fills the ring, sleeps until it is half empty, and
+  //repeats. Each batch is generated outside the lock, then published unless a
+  //caller has skipped past it in the meantime
+  private void fill() {
+    try {
+      while (true) {
+        long from;
+        int n;
+        synchronized (this) {
+          if (filled - next > capacity - BATCH)
+            refilling = false;
+          while (!closed && !refilling)
+            wait();
+          if (closed)
+            return;
+          from = filled;
+          n = (int) Math.min(BATCH, capacity - (filled - next));
+        }
+        byte[] keystream = counterBlocks(from, n);
+        engine.encryptBlocks(keystream, 0, keystream, 0, n);
+        synchronized (this) {
+          if (filled == from) {
+            for (int b = 0; b < n; b++)
+              System.arraycopy(keystream, b*16, ring, (int) ((from + b) % capacity) * 16, 16);
+            filled = from + n;
+          }
+        }
+      }
+    }
+    catch (InterruptedException e) {
+      //closed
+    }
+  }
+
+  //Lays out the counter blocks for keystream blocks from to from + n
+  private byte[] counterBlocks(long from, int n) {
+    byte[] blocks = new byte[n * 16];
+    byte[] block = counter.clone();
+    CTRMode.increment(block, from);
+    for (int b = 0; b < n; b++) {
+      System.arraycopy(block, 0, blocks, b*16, 16);
+      CTRMode.increment(block, 1);
+    }
+    return blocks;
+  }
+
+  /**
+   * Encrypts a stream of small messages through a pool, decrypts each one with
+   * CTRMode at its returned offset, and prints the pool's metrics and the
+   * average time per small message with and without the pool.
+   */
+  public static void main(String[] args) throws Exception {
+    SecureRandom random = new SecureRandom();
+    byte[] counter = new byte[16];
+    random.nextBytes(counter);
+    Key key = new Key();
+    CTRMode ctr = new CTRMode(key);
+    BlockCipherEngine engine = BlockCipherEngines.create(key, RoundTracer.NONE);
+
+    int messages = 20000;
+    boolean passed = true;
+    long pooled = 0;
+    long direct = 0;
+    try (CTRKeystreamPool pool = new CTRKeystreamPool(engine, counter, DEFAULT_CAPACITY)) {
+      Thread.sleep(100); //lets the pool fill before the first message
+      for (int m = 0; m < messages; m++) {
+        boolean large = m % 1000 == 999; //the odd large message forces an underrun, and is left out of the timings
+        byte[] message = new byte[random.nextInt(large ? 100000 : 300)];
+        random.nextBytes(message);
+        byte[] ciphertext = new byte[message.length];
+
+        long t = System.nanoTime();
+        long offset = pool.encrypt(message, 0, ciphertext, 0, message.length);
+        if (!large)
+          pooled += System.nanoTime() - t;
+
+        byte[] start = counter.clone();
+        CTRMode.increment(start, offset);
+        byte[] decrypted = new byte[message.length];
+        t = System.nanoTime();
+        ctr.processSequential(start, ciphertext, 0, decrypted, 0, ciphertext.length);
+        if (!large)
+          direct += System.nanoTime() - t;
+        passed &= Arrays.equals(decrypted, message);
+        if (m % 100 == 0)
+          Thread.sleep(1); //gaps between requests, when the pool refills
+      }
+      BlockCipherEngines.check("Every message decrypts with CTRMode", passed);
+      System.out.println(pool);
+    }
+    int small = messages - messages / 1000;
+    System.out.printf("Average per small message: pooled %.2f us, CTR without the pool %.2f us%n",
+                      pooled / 1000.0 / small, direct / 1000.0 / small);
+  }
+}
@@ -0,0 +1,207 @@
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * CTRMode - encrypts and decrypts buffers of any length with AES in counter
+ * (CTR) mode, as in NIST SP 800-38A. Block i of the message is XORed with the
+ * encryption of (initial counter + i), where the counter is a 128-bit
+ * big-endian number. Encryption and decryption are the same operation.
+ *
+ * Every block's counter depends only on its position, so process splits the
+ * buffer into CHUNK_SIZE chunks and encrypts them in parallel on a
+ * ForkJoinPool. Each chunk works out its own starting counter from its offset.
+ * processSequential does the same work on one thread, and the two always give
+ * the same output.
+ *
+ * @see BlockCipherEngine
+ * @author Seb Kryspin
+ * @version 1.0
+ */
+public class CTRMode {
+  /** The number of bytes each parallel task handles; a multiple of 16. */
+  public static final int CHUNK_SIZE = 64 * 1024;
+
+  private static final int STRIDE = 256; //keystream blocks generated per encryptBlocks call
+
+  private final BlockCipherEngine engine;
+  private final ForkJoinPool pool;
+
+  /**
+   * Creates a CTR mode over the configured engine (see BlockCipherEngines),
+   * using the common ForkJoinPool.
+   *
+   * @param k the key to use
+   */
+  public CTRMode(Key k) {
+    this(BlockCipherEngines.create(k, RoundTracer.NONE), ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Creates a CTR mode over the given engine and pool.
+   *
+   * @param engine the block cipher; must be safe to share between threads
+   * @param pool the pool the chunks run on
+   */
+  public CTRMode(BlockCipherEngine engine, ForkJoinPool pool) {
+    this.engine = engine;
+    this.pool = pool;
+  }
+
+  /**
+   * Encrypts or decrypts len bytes in parallel. in and out may be the same region.
+   *
+   * @param counter the 16-byte initial counter block; it is not modified
+   * @param in the input array
+   * @param inOff the offset of the input in in
+   * @param out the output array
+   * @param outOff the offset in out at which to write the output
+   * @param len the number of bytes to process
+   */
+  public void process(byte[] counter, byte[] in, int inOff, byte[] out, int outOff, int len) {
+    checkCounter(counter);
+    if (len <= CHUNK_SIZE)
+      processRange(counter, 0, in, inOff, out, outOff, len);
+    else
+      pool.invoke(new Chunks(counter, in, inOff, out, outOff, 0, len));
+  }
+
+  /**
+   * Encrypts or decrypts len bytes on the calling thread. This is the reference
+   * process is checked against.
+   *
+   * @param counter the 16-byte initial counter block; it is not modified
+   * @param in the input array
+   * @param inOff the offset of the input in in
+   * @param out the output array
+   * @param outOff the offset in out at which to write the output
+   * @param len the number of bytes to process
+   */
+  public void processSequential(byte[] counter, byte[] in, int inOff, byte[] out, int outOff, int len) {
+    checkCounter(counter);
+    byte[] block = counter.clone();
+    byte[] keystream = new byte[16];
+    for (int i = 0; i < len; i += 16) {
+      engine.encryptBlock(block, 0, keystream, 0);
+      for (int j = 0; j < 16 && i + j < len; j++)
+        out[outOff + i + j] = (byte) (in[inOff + i + j] ^ keystream[j]);
+      increment(block, 1);
+    }
+  }
+
+  /**
+   * Adds n to a 16-byte big-endian counter in place, carrying through all 128 bits.
+   *
+   * @param counter the counter block
+   * @param n the amount to add; must not be negative
+   */
+  public static void increment(byte[] counter, long n) {
+    for (int i = 15; i >= 0 && n != 0; i--) {
+      n += counter[i] & 0xff;
+      counter[i] = (byte) n;
+      n >>>= 8;
+    }
+  }
+
+  //Processes one range of the message; start is its byte offset from the beginning of the message
+  private void processRange(byte[] counter, long start, byte[] in, int inOff, byte[] out, int outOff, int len) {
+    byte[] block = counter.clone();
+    increment(block, start / 16);
+    byte[] keystream = new byte[Math.min(STRIDE, (len + 15) / 16) * 16];
+    for (int i = 0; i < len; i += keystream.length) {
+      int blocks = Math.min(keystream.length, len - i + 15) / 16;
+      for (int b = 0; b < blocks; b++) { //lays out the counters, then encrypts them in one call
+        System.arraycopy(block, 0, keystream, b*16, 16);
+        increment(block, 1);
+      }
+      engine.encryptBlocks(keystream, 0, keystream, 0, blocks);
+      int n = Math.min(blocks*16, len - i);
+      for (int j = 0; j < n; j++)
+        out[outOff + i + j] = (byte) (in[inOff + i + j] ^ keystream[j]);
+    }
+  }
+
+  private static void checkCounter(byte[] counter) {
+    if (counter.length != 16)
+      throw new IllegalArgumentException("The counter block must be 16 bytes, not " + counter.length + ".");
+  }
+
+  //Splits a range in half until it is at most CHUNK_SIZE bytes, then processes it
+  private class Chunks extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final byte[] counter, in, out;
+    private final int inOff, outOff, start, len;
+
+    Chunks(byte[] counter, byte[] in, int inOff, byte[] out, int outOff, int start, int len) {
+      this.counter = counter;
+      this.in = in;
+      this.inOff = inOff;
+      this.out = out;
+      this.outOff = outOff;
+      this.start = start;
+      this.len = len;
+    }
+
+    protected void compute() {
+      if (len <= CHUNK_SIZE) {
+        processRange(counter, start, in, inOff + start, out, outOff + start, len);
+        return;
+      }
+      int half = (len / CHUNK_SIZE + 1) / 2 * CHUNK_SIZE; //split on a chunk boundary, so counters stay block-aligned
+      invokeAll(new Chunks(counter, in, inOff, out, outOff, start, half),
+                new Chunks(counter, in, inOff, out, outOff, start + half, len - half));
+    }
+  }
+
+  /**
+   * Checks CTR mode against the SP 800-38A example, checks that the parallel and
+   * sequential paths agree with each other and with the JDK, and times both.
+   */
+  public static void main(String[] args) throws Exception {
+    //NIST SP 800-38A F.5.1, CTR-AES128.Encrypt
+    byte[] keyBytes = HexCodec.fromHex("2b7e151628aed2a6abf7158809cf4f3c");
+    byte[] counter = HexCodec.fromHex("f0f1f2f3f4f5f6f7f8f9fafbfcfdfeff");
+    byte[] plaintext = HexCodec.fromHex("6bc1bee22e409f96e93d7e117393172aae2d8a571e03ac9c9eb76fac45af8e51"
+                                      + "30c81c46a35ce411e5fbc1191a0a52eff69f2445df4f9b17ad2b417be66c3710");
+    String expected = "874d6191b620e3261bef6864990db6ce9806f66b7970fdff8617187bb9fffdff"
+                    + "5ae4df3edbd5d35e5b4f09020db03eab1e031dda2fbe03d1792170a0f3009cee";
+    CTRMode ctr = new CTRMode(new Key(BlockCipherEngines.toMatrix(keyBytes, 0)));
+    byte[] ciphertext = new byte[plaintext.length];
+    ctr.process(counter, plaintext, 0, ciphertext, 0, plaintext.length);
+    BlockCipherEngines.check("SP 800-38A F.5.1", HexCodec.toHex(ciphertext).equals(expected));
+
+    //a large odd-length buffer, with a counter that carries out of the low 64 bits
+    SecureRandom random = new SecureRandom();
+    byte[] message = new byte[16 * 1024 * 1024 + 5];
+    random.nextBytes(message);
+    random.nextBytes(keyBytes);
+    byte[] iv = HexCodec.fromHex("0001020304050607fffffffffffff000");
+    ctr = new CTRMode(new Key(BlockCipherEngines.toMatrix(keyBytes, 0)));
+    byte[] parallel = new byte[message.length];
+    byte[] sequential = new byte[message.length];
+    ctr.process(iv, message, 0, parallel, 0, message.length);
+    ctr.processSequential(iv, message, 0, sequential, 0, message.length);
+    BlockCipherEngines.check("Parallel == sequential", Arrays.equals(parallel, sequential));
+
+    Cipher jdk = Cipher.getInstance("AES/CTR/NoPadding");
+    jdk.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(keyBytes, "AES"), new IvParameterSpec(iv));
+    BlockCipherEngines.check("Parallel == JDK AES/CTR", Arrays.equals(parallel, jdk.doFinal(message)));
+
+    ctr.process(iv, parallel, 0, parallel, 0, parallel.length); //decrypts in place
+    BlockCipherEngines.check("Round trip", Arrays.equals(parallel, message));
+
+    for (int run = 0; run < 3; run++) {
+      long t = System.nanoTime();
+      ctr.processSequential(iv, message, 0, sequential, 0, message.length);
+      long s = System.nanoTime() - t;
+      t = System.nanoTime();
+      ctr.process(iv, message, 0, parallel, 0, message.length);
+      long p = System.nanoTime() - t;
+      System.out.printf("Sequential %d ms, parallel %d ms on %d cores%n", s / 1000000, p / 1000000, Runtime.getRuntime().availableProcessors());
+    }
+  }
+}
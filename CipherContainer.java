@@ -0,0 +1,213 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * CipherContainer - the header of the binary ciphertext format. A container file
+ * is this fixed 30-byte header followed by the raw ciphertext, with no hex and
+ * no separators, so it is the size of the ciphertext plus 30 bytes and is read
+ * and written with bulk byte copies.
+ *
+ * The header is, in order:
+ *
+ *   magic          4 bytes  "AESC"
+ *   version        1 byte   1
+ *   mode           1 byte   MODE_CBC or MODE_CTR
+ *   IV             16 bytes the IV (CBC) or initial counter block (CTR)
+ *   payload length 8 bytes  the plaintext length in bytes, big-endian
+ *
+ * Because the plaintext length is stored, the zero padding CBC adds to the last
+ * block is dropped again on decryption. The key is never stored in a container.
+ *
+ * @see CBCEncryptTool
+ * @see CBCDecryptTool
+ * @author Seb Kryspin
+ * @version 1.0
+ */
+public class CipherContainer {
+  /** The first four bytes of every container file. */
+  public static final byte[] MAGIC = {'A', 'E', 'S', 'C'};
+
+  /** The format version this class writes. */
+  public static final int VERSION = 1;
+
+  /** The mode byte for CBC with zero padding. */
+  public static final int MODE_CBC = 1;
+
+  /** The mode byte for CTR, where the ciphertext is as long as the plaintext. */
+  public static final int MODE_CTR = 2;
+
+  /** The length of the header in bytes. */
+  public static final int HEADER_LENGTH = 30;
+
+  /** The file extension the tools give container files. */
+  public static final String EXTENSION = ".aes";
+
+  private final int mode;
+  private final byte[] iv;
+  private final long payloadLength;
+
+  /**
+   * Creates a header.
+   *
+   * @param mode MODE_CBC or MODE_CTR
+   * @param iv the 16-byte IV or initial counter block
+   * @param payloadLength the plaintext length in bytes
+   */
+  public CipherContainer(int mode, byte[] iv, long payloadLength) {
+    if (mode != MODE_CBC && mode != MODE_CTR)
+      throw new IllegalArgumentException("Unknown container mode " + mode + ".");
+    if (iv.length != 16)
+      throw new IllegalArgumentException("The IV must be 16 bytes, not " + iv.length + ".");
+    this.mode = mode;
+    this.iv = iv.clone();
+    this.payloadLength = payloadLength;
+  }
+
+  /**
+   * Returns the mode byte.
+   *
+   * @return MODE_CBC or MODE_CTR
+   */
+  public int getMode() {return mode;}
+
+  /**
+   * Returns the IV.
+   *
+   * @return a copy of the 16-byte IV
+   */
+  public byte[] getIV() {return iv.clone();}
+
+  /**
+   * Returns the plaintext length.
+   *
+   * @return the plaintext length in bytes
+   */
+  public long getPayloadLength() {return payloadLength;}
+
+  /**
+   * Returns the length of the ciphertext that follows the header.
+   *
+   * @return the plaintext length rounded up to whole blocks for CBC, or the plaintext length for CTR
+   */
+  public long getCiphertextLength() {
+    return mode == MODE_CBC ? (payloadLength + 15) / 16 * 16 : payloadLength;
+  }
+
+  /**
+   * Returns the header as bytes.
+   *
+   * @return a new array of HEADER_LENGTH bytes
+   */
+  public byte[] toBytes() {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH); //big-endian, as the format requires
+    header.put(MAGIC).put((byte) VERSION).put((byte) mode).put(iv).putLong(payloadLength);
+    return header.array();
+  }
+
+  /**
+   * Writes the header in one write.
+   *
+   * @param out the stream to write to
+   * @throws IOException if an I/O error occurs
+   */
+  public void write(OutputStream out) throws IOException {
+    out.write(toBytes());
+  }
+
+  /**
+   * Reads and checks a header.
+   *
+   * @param in the stream to read from, positioned at the start of the container
+   * @return the header
+   * @throws IOException if the stream does not start with a valid header
+   */
+  public static CipherContainer read(InputStream in) throws IOException {
+    byte[] bytes = new byte[HEADER_LENGTH];
+    if (in.readNBytes(bytes, 0, HEADER_LENGTH) != HEADER_LENGTH)
+      throw new IOException("The container header is truncated.");
+    return fromBytes(bytes);
+  }
+
+  /**
+   * Parses and checks a header.
+   *
+   * @param bytes at least HEADER_LENGTH bytes
+   * @return the header
+   * @throws IOException if the bytes are not a valid header
+   */
+  public static CipherContainer fromBytes(byte[] bytes) throws IOException {
+    ByteBuffer header = ByteBuffer.wrap(bytes, 0, HEADER_LENGTH);
+    byte[] magic = new byte[MAGIC.length];
+    header.get(magic);
+    if (!Arrays.equals(magic, MAGIC))
+      throw new IOException("This is not a ciphertext container.");
+    int version = header.get() & 0xff;
+    if (version != VERSION)
+      throw new IOException("Container version " + version + " is not supported; this version reads version " + VERSION + ".");
+    int mode = header.get() & 0xff;
+    byte[] iv = new byte[16];
+    header.get(iv);
+    long payloadLength = header.getLong();
+    if (payloadLength < 0)
+      throw new IOException("The container payload length is negative.");
+    try {
+      return new CipherContainer(mode, iv, payloadLength);
+    }
+    catch (IllegalArgumentException e) {
+      throw new IOException(e.getMessage());
+    }
+  }
+
+  /**
+   * Returns whether a file starts with the container magic.
+   *
+   * @param filename the file to check
+   * @return true if the file is a container
+   * @throws IOException if the file cannot be read
+   */
+  public static boolean isContainer(String filename) throws IOException {
+    InputStream in = new FileInputStream(filename);
+    byte[] magic = new byte[MAGIC.length];
+    int n = in.readNBytes(magic, 0, magic.length);
+    in.close();
+    return n == MAGIC.length && Arrays.equals(magic, MAGIC);
+  }
+
+  /**
+   * Returns a description of the header.
+   *
+   * @return the mode, IV and payload length
+   */
+  public String toString() {
+    String result = "CipherContainer[version " + VERSION + ", " + (mode == MODE_CBC ? "CBC" : "CTR") + ", IV ";
+    for (byte b : iv)
+      result = result + String.format("%02X", b);
+    return result + ", " + payloadLength + " bytes]";
+  }
+
+  /**
+   * Writes a header and reads it back, and checks that bad headers are rejected.
+   */
+  public static void main(String[] args) throws IOException {
+    byte[] iv = CTRDRBG.current().nextBytes(16);
+    CipherContainer header = new CipherContainer(MODE_CBC, iv, 1277);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    header.write(out);
+    CipherContainer back = read(new ByteArrayInputStream(out.toByteArray()));
+    boolean passed = out.size() == HEADER_LENGTH && back.getMode() == MODE_CBC && Arrays.equals(back.getIV(), iv)
+                  && back.getPayloadLength() == 1277 && back.getCiphertextLength() == 1280;
+    System.out.println(back);
+    BlockCipherEngines.check("Header round trip", passed);
+
+    byte[] bad = out.toByteArray();
+    bad[4] = 9;
+    try {
+      fromBytes(bad);
+      System.out.println("Unknown version rejected: FAILED");
+    }
+    catch (IOException e) {
+      System.out.println("Unknown version rejected: passed (" + e.getMessage() + ")");
+    }
+  }
+}
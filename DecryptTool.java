@@ -14,6 +14,7 @@ import java.util.Scanner;
  *
  *
  * @see AESDecrypter
+ * @see BlockCipherEngines
  * @see EncryptTool
  * @author Seb Kryspin
  * @version 1.0
@@ -58,7 +59,7 @@ public class DecryptTool {
     }
     keyReader.close();
 
-    AESDecrypter test1 = new AESDecrypter(new Key(keyArray));
+    BlockCipherEngine test1 = BlockCipherEngines.create(new Key(keyArray), BlockCipherEngines.tracer());
     short[][] decrypted = test1.Decrypt(ciphertextArray); //Encrypts the message
 
 
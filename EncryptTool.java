@@ -13,6 +13,7 @@ import java.util.Scanner;
  *
  *
  * @see AESEncrypter
+ * @see BlockCipherEngines
  * @see DecryptTool
  * @author Seb Kryspin
  * @version 1.0
@@ -32,7 +33,7 @@ public class EncryptTool {
   public static void encryptFile(String filename, String keyname) throws FileNotFoundException, IOException{
     short[][] message = readMessageFile(filename);           //Reads the Message file
     short[][] keyArray = readKeyFile(keyname);                //Reads the Key file
-    AESEncrypter aes = new AESEncrypter(new Key(keyArray)); //Creates a new AESEncrypter with the specified key
+    BlockCipherEngine aes = BlockCipherEngines.create(new Key(keyArray), BlockCipherEngines.tracer()); //Creates the configured engine with the specified key
     short[][] encrypted = aes.Encrypt(message);            //Encrypts the message
     writeEncryptedToFile(filename, encrypted);                  //writes the _encrypted file
   }
@@ -53,7 +54,7 @@ public class EncryptTool {
 
     writeKeyToFile(filename, randomKey.getKeyValue());
 
-    AESEncrypter aes = new AESEncrypter(randomKey); //Creates a new AESEncrypter with the specified key
+    BlockCipherEngine aes = BlockCipherEngines.create(randomKey, BlockCipherEngines.tracer()); //Creates the configured engine with the specified key
     short[][] encrypted = aes.Encrypt(message);            //Encrypts the message
 
     writeEncryptedToFile(filename, encrypted);
@@ -117,18 +118,7 @@ public class EncryptTool {
    */
   private static void writeToFile(String filename, short[][] array) throws FileNotFoundException, IOException{
     BufferedWriter writer = new BufferedWriter(new FileWriter(filename));
-    int i = 0;
-    int[] keyBuf = new int[16];
-    for (int c = 0; c < 4; c++){
-      for (int r = 0; r < 4; r++) {
-        keyBuf[i] = array[r][c];
-        i++;
-      }
-    }
-    for (i = 0; i < 16; i++) {
-      writer.write(String.format("%02X", keyBuf[i]), 0, 2);
-      writer.write(' ');
-    }
+    HexCodec.encode(BlockCipherEngines.toBytes(array), 0, 16, writer); //the array is written column by column
     writer.close();
   }
 
@@ -0,0 +1,342 @@
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * GCMMode - authenticated encryption with AES in Galois/Counter Mode, as in
+ * NIST SP 800-38D. The message is encrypted in CTR mode, and a 16-byte tag is
+ * computed over the additional data and the ciphertext with GHASH, a polynomial
+ * hash in GF(2^128) keyed by H = E(0^128).
+ *
+ * GHASH multiplies by H four bits at a time using two 16-entry tables built
+ * from H when the mode is created (Shoup's method), instead of the 128-step
+ * bit-by-bit multiply. Encryption and decryption make a single pass over the
+ * data: each stride of blocks is encrypted and hashed while it is still in
+ * the cache. Decryption compares the tag after that pass, and if it does not
+ * match, the plaintext is zeroed and never returned.
+ *
+ * @see CTRMode
+ * @see BlockCipherEngine
+ * @author Seb Kryspin
+ * @version 1.0
+ */
+public class GCMMode {
+  /** The length of the authentication tag in bytes. */
+  public static final int TAG_LENGTH = 16;
+
+  private static final int STRIDE = 256; //blocks encrypted and hashed together
+
+  //the reductions for the four bits shifted out of the bottom of the field element
+  private static final long[] LAST4 = {
+    0x0000, 0x1c20, 0x3840, 0x2460, 0x7080, 0x6ca0, 0x48c0, 0x54e0,
+    0xe100, 0xfd20, 0xd940, 0xc560, 0x9180, 0x8da0, 0xa9c0, 0xb5e0
+  };
+
+  private final BlockCipherEngine engine;
+  private final long[] hh = new long[16]; //hh[n], hl[n]: the high and low halves of n*H, n a 4-bit field element
+  private final long[] hl = new long[16];
+
+  /**
+   * Creates a GCM mode over the configured engine (see BlockCipherEngines).
+   *
+   * @param k the key to use
+   */
+  public GCMMode(Key k) {
+    this(BlockCipherEngines.create(k, RoundTracer.NONE));
+  }
+
+  /**
+   * Creates a GCM mode over the given engine, and builds its GHASH tables.
+   *
+   * @param engine the block cipher
+   */
+  public GCMMode(BlockCipherEngine engine) {
+    this.engine = engine;
+    byte[] h = new byte[16];
+    engine.encryptBlock(h, 0, h, 0);
+    long vh = getLong(h, 0);
+    long vl = getLong(h, 8);
+    hh[8] = vh; //8 is the bit pattern 1000, the field element 1, so 8*H = H
+    hl[8] = vl;
+    for (int i = 4; i > 0; i >>= 1) { //halving shifts right by one bit in GCM's reflected bit order
+      long t = (vl & 1) * 0xe100000000000000L;
+      vl = (vh << 63) | (vl >>> 1);
+      vh = (vh >>> 1) ^ t;
+      hh[i] = vh;
+      hl[i] = vl;
+    }
+    for (int i = 2; i <= 8; i *= 2) {
+      for (int j = 1; j < i; j++) {
+        hh[i + j] = hh[i] ^ hh[j];
+        hl[i + j] = hl[i] ^ hl[j];
+      }
+    }
+  }
+
+  /**
+   * Encrypts and authenticates a message.
+   *
+   * @param iv the initialization vector; 12 bytes is recommended, and it must never repeat under one key
+   * @param aad additional data that is authenticated but not encrypted; may be empty
+   * @param plaintext the message
+   * @return the ciphertext followed by the 16-byte tag
+   */
+  public byte[] encrypt(byte[] iv, byte[] aad, byte[] plaintext) {
+    byte[] out = new byte[plaintext.length + TAG_LENGTH];
+    long[] y = new long[2];
+    byte[] j0 = initialCounter(iv);
+    ghash(y, aad, 0, aad.length);
+    crypt(j0, plaintext, 0, out, 0, plaintext.length, y, false);
+    tag(y, j0, aad.length, plaintext.length, out, plaintext.length);
+    return out;
+  }
+
+  /**
+   * Checks and decrypts a message.
+   *
+   * @param iv the initialization vector the message was encrypted with
+   * @param aad the additional data the message was encrypted with
+   * @param ciphertext the ciphertext followed by the 16-byte tag
+   * @return the plaintext
+   * @throws AEADBadTagException if the tag does not match, in which case no plaintext is returned
+   */
+  public byte[] decrypt(byte[] iv, byte[] aad, byte[] ciphertext) throws AEADBadTagException {
+    int len = ciphertext.length - TAG_LENGTH;
+    if (len < 0)
+      throw new AEADBadTagException("The ciphertext is shorter than the tag.");
+    long[] y = new long[2];
+    byte[] j0 = initialCounter(iv);
+    ghash(y, aad, 0, aad.length);
+    byte[] out = new byte[len];
+    crypt(j0, ciphertext, 0, out, 0, len, y, true);
+    byte[] expected = new byte[TAG_LENGTH];
+    tag(y, j0, aad.length, len, expected, 0);
+    if (!MessageDigest.isEqual(expected, Arrays.copyOfRange(ciphertext, len, ciphertext.length))) {
+      Arrays.fill(out, (byte) 0); //the unauthenticated plaintext never leaves this method
+      throw new AEADBadTagException("The GCM tag does not match.");
+    }
+    return out;
+  }
+
+  //Encrypts or decrypts in CTR mode starting at inc32(j0), hashing the ciphertext
+  //(the output when encrypting, the input when decrypting) into y stride by stride
+  private void crypt(byte[] j0, byte[] in, int inOff, byte[] out, int outOff, int len, long[] y, boolean decrypting) {
+    byte[] counter = j0.clone();
+    byte[] keystream = new byte[STRIDE * 16];
+    for (int i = 0; i < len; i += keystream.length) {
+      int n = Math.min(keystream.length, len - i);
+      int blocks = (n + 15) / 16;
+      for (int b = 0; b < blocks; b++) {
+        increment32(counter);
+        System.arraycopy(counter, 0, keystream, b*16, 16);
+      }
+      engine.encryptBlocks(keystream, 0, keystream, 0, blocks);
+      if (decrypting)
+        ghash(y, in, inOff + i, n);
+      for (int j = 0; j < n; j++)
+        out[outOff + i + j] = (byte) (in[inOff + i + j] ^ keystream[j]);
+      if (!decrypting)
+        ghash(y, out, outOff + i, n);
+    }
+  }
+
+  //Works out J0, the counter block for the tag; the message starts at J0 + 1
+  private byte[] initialCounter(byte[] iv) {
+    byte[] j0 = new byte[16];
+    if (iv.length == 12) {
+      System.arraycopy(iv, 0, j0, 0, 12);
+      j0[15] = 1;
+      return j0;
+    }
+    if (iv.length == 0)
+      throw new IllegalArgumentException("The GCM IV must not be empty.");
+    long[] y = new long[2];
+    ghash(y, iv, 0, iv.length);
+    y[1] ^= (long) iv.length * 8;
+    multiplyH(y);
+    putLong(y[0], j0, 0);
+    putLong(y[1], j0, 8);
+    return j0;
+  }
+
+  //Hashes in the lengths block and encrypts the result with J0
+  private void tag(long[] y, byte[] j0, long aadLength, long length, byte[] out, int outOff) {
+    y[0] ^= aadLength * 8;
+    y[1] ^= length * 8;
+    multiplyH(y);
+    byte[] tag = j0.clone();
+    engine.encryptBlock(tag, 0, tag, 0);
+    for (int i = 0; i < 16; i++)
+      out[outOff + i] = (byte) (tag[i] ^ (y[i / 8] >>> (56 - 8*(i % 8))));
+  }
+
+  //Hashes len bytes into y, padding the last block with zeros
+  private void ghash(long[] y, byte[] in, int off, int len) {
+    int i = 0;
+    for (; i + 16 <= len; i += 16) {
+      y[0] ^= getLong(in, off + i);
+      y[1] ^= getLong(in, off + i + 8);
+      multiplyH(y);
+    }
+    if (i < len) {
+      byte[] last = new byte[16];
+      System.arraycopy(in, off + i, last, 0, len - i);
+      y[0] ^= getLong(last, 0);
+      y[1] ^= getLong(last, 8);
+      multiplyH(y);
+    }
+  }
+
+  //Sets y to y*H, a nibble at a time from the last byte to the first
+  private void multiplyH(long[] y) {
+    long zh = 0;
+    long zl = 0;
+    for (int i = 15; i >= 0; i--) {
+      int b = (int) (y[i / 8] >>> (56 - 8*(i % 8))) & 0xff;
+      int lo = b & 0xf;
+      int hi = b >>> 4;
+      if (i != 15) {
+        int rem = (int) zl & 0xf;
+        zl = (zh << 60) | (zl >>> 4);
+        zh = (zh >>> 4) ^ (LAST4[rem] << 48);
+      }
+      zh ^= hh[lo];
+      zl ^= hl[lo];
+      int rem = (int) zl & 0xf;
+      zl = (zh << 60) | (zl >>> 4);
+      zh = (zh >>> 4) ^ (LAST4[rem] << 48);
+      zh ^= hh[hi];
+      zl ^= hl[hi];
+    }
+    y[0] = zh;
+    y[1] = zl;
+  }
+
+  //Adds one to the last 32 bits of a counter block, wrapping without carrying into the IV
+  private static void increment32(byte[] counter) {
+    for (int i = 15; i >= 12; i--)
+      if (++counter[i] != 0)
+        return;
+  }
+
+  private static long getLong(byte[] b, int off) {
+    long v = 0;
+    for (int i = 0; i < 8; i++)
+      v = (v << 8) | (b[off + i] & 0xff);
+    return v;
+  }
+
+  private static void putLong(long v, byte[] b, int off) {
+    for (int i = 7; i >= 0; i--) {
+      b[off + i] = (byte) v;
+      v >>>= 8;
+    }
+  }
+
+  private static GCMMode forKey(byte[] keyBytes) {
+    return new GCMMode(new Key(BlockCipherEngines.toMatrix(keyBytes, 0)));
+  }
+
+  /**
+   * Checks GCM mode against the AES-128 test cases from the GCM specification
+   * (McGrew and Viega), which SP 800-38D's examples repeat, and against the
+   * JDK's AES/GCM, then compares its throughput with CBC.
+   */
+  public static void main(String[] args) throws Exception {
+    String p = "d9313225f88406e5a55909c5aff5269a86a7a9531534f7da2e4c303d8a318a72"
+             + "1c3c0c95956809532fcf0e2449a6b525b16aedf5aa0de657ba637b391aafd255";
+    String c = "42831ec2217774244b7221b784d0d49ce3aa212f2c02a4e035c17e2329aca12e"
+             + "21d514b25466931c7d8f6a5aac84aa051ba30b396a0aac973d58e091473f5985";
+    String k = "feffe9928665731c6d6a8f9467308308";
+    String a = "feedfacedeadbeeffeedfacedeadbeefabaddad2";
+    //key, IV, additional data, plaintext, ciphertext + tag
+    String[][] cases = {
+      {"00000000000000000000000000000000", "000000000000000000000000", "", "",
+       "58e2fccefa7e3061367f1d57a4e7455a"},
+      {"00000000000000000000000000000000", "000000000000000000000000", "", "00000000000000000000000000000000",
+       "0388dace60b6a392f328c2b971b2fe78ab6e47d42cec13bdf53a67b21257bddf"},
+      {k, "cafebabefacedbaddecaf888", "", p,
+       c + "4d5c2af327cd64a62cf35abd2ba6fab4"},
+      {k, "cafebabefacedbaddecaf888", a, p.substring(0, 120),
+       c.substring(0, 120) + "5bc94fbc3221a5db94fae95ae7121a47"},
+      {k, "cafebabefacedbad", a, p.substring(0, 120),
+       "61353b4c2806934a777ff51fa22a4755699b2a714fcdc6f83766e5f97b6c742373806900e49f24b22b097544d4896b424989b5e1ebac0f07c23f4598"
+       + "3612d2e79e3b0785561be14aaca2fccb"}
+    };
+    for (int i = 0; i < cases.length; i++) {
+      String[] t = cases[i];
+      GCMMode gcm = forKey(HexCodec.fromHex(t[0]));
+      byte[] sealed = gcm.encrypt(HexCodec.fromHex(t[1]), HexCodec.fromHex(t[2]), HexCodec.fromHex(t[3]));
+      boolean passed = HexCodec.toHex(sealed).equals(t[4])
+                    && HexCodec.toHex(gcm.decrypt(HexCodec.fromHex(t[1]), HexCodec.fromHex(t[2]), sealed)).equals(t[3]);
+      BlockCipherEngines.check("GCM test case " + (i + 1), passed);
+    }
+
+    //random lengths and IV sizes against the JDK, and a tampered tag
+    SecureRandom random = new SecureRandom();
+    boolean agrees = true;
+    for (int i = 0; i < 50; i++) {
+      byte[] keyBytes = new byte[16];
+      byte[] iv = new byte[i % 5 == 0 ? 1 + random.nextInt(40) : 12];
+      byte[] aad = new byte[random.nextInt(50)];
+      byte[] message = new byte[random.nextInt(5000)];
+      random.nextBytes(keyBytes);
+      random.nextBytes(iv);
+      random.nextBytes(aad);
+      random.nextBytes(message);
+      Cipher jdk = Cipher.getInstance("AES/GCM/NoPadding");
+      jdk.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(keyBytes, "AES"), new GCMParameterSpec(128, iv));
+      jdk.updateAAD(aad);
+      byte[] sealed = forKey(keyBytes).encrypt(iv, aad, message);
+      agrees &= Arrays.equals(sealed, jdk.doFinal(message)) && Arrays.equals(forKey(keyBytes).decrypt(iv, aad, sealed), message);
+    }
+    BlockCipherEngines.check("GCM == JDK AES/GCM", agrees);
+    GCMMode gcm = forKey(HexCodec.fromHex(k));
+    byte[] iv = HexCodec.fromHex("cafebabefacedbaddecaf888");
+    byte[] sealed = gcm.encrypt(iv, new byte[0], HexCodec.fromHex(p));
+    sealed[sealed.length - 1] ^= 1;
+    try {
+      gcm.decrypt(iv, new byte[0], sealed);
+      System.out.println("Tampered tag rejected: FAILED");
+    }
+    catch (AEADBadTagException e) {
+      System.out.println("Tampered tag rejected: passed");
+    }
+    sealed[sealed.length - 1] ^= 1;
+    sealed[0] ^= 1;
+    try {
+      gcm.decrypt(iv, new byte[0], sealed);
+      System.out.println("Tampered ciphertext rejected: FAILED");
+    }
+    catch (AEADBadTagException e) {
+      System.out.println("Tampered ciphertext rejected: passed");
+    }
+
+    //throughput: GCM (encrypt and authenticate) against CBC (encrypt only)
+    BlockCipherEngine engine = BlockCipherEngines.create(new Key(BlockCipherEngines.toMatrix(HexCodec.fromHex(k), 0)), RoundTracer.NONE);
+    gcm = new GCMMode(engine);
+    byte[] message = new byte[4 * 1024 * 1024];
+    random.nextBytes(message);
+    byte[] cbc = new byte[message.length];
+    for (int run = 0; run < 3; run++) {
+      long t = System.nanoTime();
+      gcm.encrypt(iv, new byte[0], message);
+      long g = System.nanoTime() - t;
+      t = System.nanoTime();
+      byte[] previous = new byte[16];
+      for (int i = 0; i < message.length; i += 16) {
+        for (int j = 0; j < 16; j++)
+          cbc[i + j] = (byte) (message[i + j] ^ previous[j]);
+        engine.encryptBlock(cbc, i, cbc, i);
+        previous = Arrays.copyOfRange(cbc, i, i + 16);
+      }
+      long b = System.nanoTime() - t;
+      System.out.printf("%s engine, 4 MiB: GCM %.1f MB/s, CBC %.1f MB/s%n", engine.getName(),
+                        message.length / (g / 1000.0), message.length / (b / 1000.0));
+    }
+  }
+}
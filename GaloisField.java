@@ -0,0 +1,127 @@
+/**
+ * GaloisField - the GF(2^8) arithmetic and lookup tables shared by every AES
+ * class, so each table exists exactly once.
+ *
+ * It holds:
+ * - the Rijndael S-box and inverse S-box as flat 256-entry arrays, indexed
+ *   directly by the byte value (no high/low nibble split),
+ * - log and antilog (exponent) tables for general multiplication,
+ * - tables for multiplying by each MixColumns and InvMixColumns constant
+ *   (2, 3, 9, 11, 13 and 14),
+ * - the encryption and decryption T-tables derived from all of the above.
+ *
+ * Everything except the S-box itself is computed once, when the class loads.
+ * The arrays are package-private and shared, so callers must never modify them.
+ *
+ * @see KeyExpander
+ * @see AESEncrypter
+ * @see AESDecrypter
+ * @author Seb Kryspin
+ * @version 1.0
+ */
+public class GaloisField {
+
+  /** The Rijndael S-box, used for SubBytes(). SBOX[x] is the substitution of byte x. */
+  static final int[] SBOX = {
+    0x63, 0x7c, 0x77, 0x7b, 0xf2, 0x6b, 0x6f, 0xc5, 0x30, 0x01, 0x67, 0x2b, 0xfe, 0xd7, 0xab, 0x76,
+    0xca, 0x82, 0xc9, 0x7d, 0xfa, 0x59, 0x47, 0xf0, 0xad, 0xd4, 0xa2, 0xaf, 0x9c, 0xa4, 0x72, 0xc0,
+    0xb7, 0xfd, 0x93, 0x26, 0x36, 0x3f, 0xf7, 0xcc, 0x34, 0xa5, 0xe5, 0xf1, 0x71, 0xd8, 0x31, 0x15,
+    0x04, 0xc7, 0x23, 0xc3, 0x18, 0x96, 0x05, 0x9a, 0x07, 0x12, 0x80, 0xe2, 0xeb, 0x27, 0xb2, 0x75,
+    0x09, 0x83, 0x2c, 0x1a, 0x1b, 0x6e, 0x5a, 0xa0, 0x52, 0x3b, 0xd6, 0xb3, 0x29, 0xe3, 0x2f, 0x84,
+    0x53, 0xd1, 0x00, 0xed, 0x20, 0xfc, 0xb1, 0x5b, 0x6a, 0xcb, 0xbe, 0x39, 0x4a, 0x4c, 0x58, 0xcf,
+    0xd0, 0xef, 0xaa, 0xfb, 0x43, 0x4d, 0x33, 0x85, 0x45, 0xf9, 0x02, 0x7f, 0x50, 0x3c, 0x9f, 0xa8,
+    0x51, 0xa3, 0x40, 0x8f, 0x92, 0x9d, 0x38, 0xf5, 0xbc, 0xb6, 0xda, 0x21, 0x10, 0xff, 0xf3, 0xd2,
+    0xcd, 0x0c, 0x13, 0xec, 0x5f, 0x97, 0x44, 0x17, 0xc4, 0xa7, 0x7e, 0x3d, 0x64, 0x5d, 0x19, 0x73,
+    0x60, 0x81, 0x4f, 0xdc, 0x22, 0x2a, 0x90, 0x88, 0x46, 0xee, 0xb8, 0x14, 0xde, 0x5e, 0x0b, 0xdb,
+    0xe0, 0x32, 0x3a, 0x0a, 0x49, 0x06, 0x24, 0x5c, 0xc2, 0xd3, 0xac, 0x62, 0x91, 0x95, 0xe4, 0x79,
+    0xe7, 0xc8, 0x37, 0x6d, 0x8d, 0xd5, 0x4e, 0xa9, 0x6c, 0x56, 0xf4, 0xea, 0x65, 0x7a, 0xae, 0x08,
+    0xba, 0x78, 0x25, 0x2e, 0x1c, 0xa6, 0xb4, 0xc6, 0xe8, 0xdd, 0x74, 0x1f, 0x4b, 0xbd, 0x8b, 0x8a,
+    0x70, 0x3e, 0xb5, 0x66, 0x48, 0x03, 0xf6, 0x0e, 0x61, 0x35, 0x57, 0xb9, 0x86, 0xc1, 0x1d, 0x9e,
+    0xe1, 0xf8, 0x98, 0x11, 0x69, 0xd9, 0x8e, 0x94, 0x9b, 0x1e, 0x87, 0xe9, 0xce, 0x55, 0x28, 0xdf,
+    0x8c, 0xa1, 0x89, 0x0d, 0xbf, 0xe6, 0x42, 0x68, 0x41, 0x99, 0x2d, 0x0f, 0xb0, 0x54, 0xbb, 0x16};
+
+  /** The inverse S-box, used for InvSubBytes(). INV_SBOX[SBOX[x]] == x. */
+  static final int[] INV_SBOX = new int[256];
+
+  /** LOG[x] is the power of the generator 3 that gives x (LOG[0] is unused). */
+  static final int[] LOG = new int[256];
+
+  /** EXP[i] is 3^i; it is doubled in length so EXP[LOG[a] + LOG[b]] needs no modulo. */
+  static final int[] EXP = new int[510];
+
+  /** MUL2[x] is x * 2 over GF(2^8), and so on for the other constants. */
+  static final int[] MUL2 = new int[256];
+  static final int[] MUL3 = new int[256];
+  static final int[] MUL9 = new int[256];
+  static final int[] MUL11 = new int[256];
+  static final int[] MUL13 = new int[256];
+  static final int[] MUL14 = new int[256];
+
+  /** TE0[x] is the column {2s, s, s, 3s} with s = SBOX[x]; TE1 to TE3 are TE0 rotated right by 1 to 3 bytes. */
+  static final int[] TE0 = new int[256];
+  static final int[] TE1 = new int[256];
+  static final int[] TE2 = new int[256];
+  static final int[] TE3 = new int[256];
+
+  /** TD0[x] is the column {14s, 9s, 13s, 11s} with s = INV_SBOX[x]; TD1 to TD3 are TD0 rotated right by 1 to 3 bytes. */
+  static final int[] TD0 = new int[256];
+  static final int[] TD1 = new int[256];
+  static final int[] TD2 = new int[256];
+  static final int[] TD3 = new int[256];
+
+  static {
+    int x = 1;
+    for (int i = 0; i < 255; i++) { //3 generates every nonzero element
+      EXP[i] = x;
+      EXP[i + 255] = x;
+      LOG[x] = i;
+      x ^= xtime(x); //x * 3
+    }
+    for (int a = 0; a < 256; a++) {
+      INV_SBOX[SBOX[a]] = a;
+      MUL2[a] = multiply(a, 2);
+      MUL3[a] = multiply(a, 3);
+      MUL9[a] = multiply(a, 9);
+      MUL11[a] = multiply(a, 11);
+      MUL13[a] = multiply(a, 13);
+      MUL14[a] = multiply(a, 14);
+    }
+    for (int a = 0; a < 256; a++) {
+      int s = SBOX[a];
+      int te = (MUL2[s] << 24) | (s << 16) | (s << 8) | MUL3[s];
+      TE0[a] = te;
+      TE1[a] = Integer.rotateRight(te, 8);
+      TE2[a] = Integer.rotateRight(te, 16);
+      TE3[a] = Integer.rotateRight(te, 24);
+      s = INV_SBOX[a];
+      int td = (MUL14[s] << 24) | (MUL9[s] << 16) | (MUL13[s] << 8) | MUL11[s];
+      TD0[a] = td;
+      TD1[a] = Integer.rotateRight(td, 8);
+      TD2[a] = Integer.rotateRight(td, 16);
+      TD3[a] = Integer.rotateRight(td, 24);
+    }
+  }
+
+  /**
+   * Multiplies two bytes over GF(2^8) using the log and antilog tables.
+   *
+   * @param a a byte value
+   * @param b a byte value
+   * @return a * b over GF(2^8)
+   */
+  public static int multiply(int a, int b) {
+    if (a == 0 || b == 0)
+      return 0;
+    return EXP[LOG[a] + LOG[b]];
+  }
+
+  /**
+   * Multiplies a byte by 2 over GF(2^8).
+   *
+   * @param x the byte to multiply
+   * @return x * 2 over GF(2^8)
+   */
+  public static int xtime(int x) {
+    return ((x << 1) ^ ((x >> 7) * 0x1b)) & 0xff;
+  }
+}
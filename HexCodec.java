@@ -0,0 +1,240 @@
+import java.io.*;
+import java.util.Arrays;
+import java.util.Scanner;
+
+/**
+ * HexCodec - reads and writes the tools' hex text format: every byte as two
+ * upper-case hex digits followed by a space, with blocks in the same
+ * column-major order as everywhere else ("%02X " per byte).
+ *
+ * Encoding looks each byte's two digits up in a 512-entry table and fills a
+ * char buffer a chunk at a time, so a whole chunk goes to the Writer in one
+ * call. Decoding reads a chunk of chars at a time and turns each digit into a
+ * nibble with a 128-entry table, instead of a Scanner.next() and a
+ * Short.parseShort for every byte. Any whitespace separates bytes, and one- or
+ * two-digit values in either case are accepted, as the Scanner accepted them.
+ *
+ * toHex and fromHex handle the compact lower-case form that test vectors are
+ * written in, for the self-test mains.
+ *
+ * @see CBCEncryptTool
+ * @see CBCDecryptTool
+ * @author Seb Kryspin
+ * @version 1.0
+ */
+public class HexCodec {
+  /** The number of bytes encoded per Writer call. */
+  public static final int CHUNK_BYTES = 8192;
+
+  private static final char[] DIGITS = new char[512]; //DIGITS[2b], DIGITS[2b + 1]: the two digits of byte b
+  private static final byte[] NIBBLE = new byte[128]; //the value of a hex digit, or -1
+
+  static {
+    String hex = "0123456789ABCDEF";
+    for (int b = 0; b < 256; b++) {
+      DIGITS[2*b] = hex.charAt(b >>> 4);
+      DIGITS[2*b + 1] = hex.charAt(b & 0xf);
+    }
+    Arrays.fill(NIBBLE, (byte) -1);
+    for (int i = 0; i < 16; i++) {
+      NIBBLE[hex.charAt(i)] = (byte) i;
+      NIBBLE[Character.toLowerCase(hex.charAt(i))] = (byte) i;
+    }
+  }
+
+  /**
+   * Writes bytes as hex, each followed by a space.
+   *
+   * @param in the array holding the bytes
+   * @param off the offset of the first byte
+   * @param len the number of bytes
+   * @param out the writer to write to
+   * @throws IOException if an I/O error occurs
+   */
+  public static void encode(byte[] in, int off, int len, Writer out) throws IOException {
+    char[] chars = new char[Math.min(len, CHUNK_BYTES) * 3];
+    for (int done = 0; done < len; ) {
+      int n = Math.min(CHUNK_BYTES, len - done);
+      int c = 0;
+      for (int i = off + done; i < off + done + n; i++) {
+        int b = (in[i] & 0xff) << 1;
+        chars[c++] = DIGITS[b];
+        chars[c++] = DIGITS[b + 1];
+        chars[c++] = ' ';
+      }
+      out.write(chars, 0, c);
+      done += n;
+    }
+  }
+
+  /**
+   * Returns bytes as hex, each followed by a space.
+   *
+   * @param bytes the bytes
+   * @return the hex String
+   */
+  public static String encode(byte[] bytes) {
+    StringWriter out = new StringWriter(bytes.length * 3);
+    try {
+      encode(bytes, 0, bytes.length, out);
+    }
+    catch (IOException e) { //a StringWriter does not throw
+      throw new UncheckedIOException(e);
+    }
+    return out.toString();
+  }
+
+  /**
+   * Returns bytes as lower-case hex with no separators, the way published test
+   * vectors are written.
+   *
+   * @param bytes the bytes
+   * @return the hex String, two digits per byte
+   */
+  public static String toHex(byte[] bytes) {
+    char[] chars = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      int b = (bytes[i] & 0xff) << 1;
+      chars[2*i] = Character.toLowerCase(DIGITS[b]);
+      chars[2*i + 1] = Character.toLowerCase(DIGITS[b + 1]);
+    }
+    return new String(chars);
+  }
+
+  /**
+   * Parses hex with no separators, in either case, as test vectors are written.
+   *
+   * @param hex an even number of hex digits
+   * @return the bytes
+   * @throws NumberFormatException if hex has an odd length or a character that is not a hex digit
+   */
+  public static byte[] fromHex(String hex) {
+    if (hex.length() % 2 != 0)
+      throw new NumberFormatException("Hex has an odd number of digits.");
+    byte[] bytes = new byte[hex.length() / 2];
+    for (int i = 0; i < bytes.length; i++)
+      bytes[i] = (byte) ((nibble(hex.charAt(2*i)) << 4) | nibble(hex.charAt(2*i + 1)));
+    return bytes;
+  }
+
+  private static int nibble(char c) {
+    if (c >= 128 || NIBBLE[c] < 0)
+      throw new NumberFormatException("'" + c + "' is not a hex digit.");
+    return NIBBLE[c];
+  }
+
+  /**
+   * Decoder - reads bytes from hex text, a chunk of characters at a time.
+   */
+  public static class Decoder implements Closeable {
+    private final Reader in;
+    private final char[] chars = new char[CHUNK_BYTES * 3];
+    private int position; //the next unread char in chars, and the number of chars in it
+    private int limit;
+
+    /**
+     * Creates a decoder over hex text.
+     *
+     * @param in the text to decode; it does not need to be buffered
+     */
+    public Decoder(Reader in) {
+      this.in = in;
+    }
+
+    /**
+     * Decodes up to len bytes, stopping early only at the end of the text.
+     *
+     * @param buf the array to decode into
+     * @param off the offset in buf at which to start
+     * @param len the largest number of bytes to decode
+     * @return the number of bytes decoded, 0 at the end of the text
+     * @throws IOException if an I/O error occurs
+     * @throws NumberFormatException if the text holds something other than one- or two-digit hex values
+     */
+    public int read(byte[] buf, int off, int len) throws IOException {
+      int n = 0;
+      int value = 0;
+      int digits = 0; //digits of the current value read so far
+      while (n < len) {
+        if (position == limit) {
+          limit = in.read(chars, 0, chars.length);
+          position = 0;
+          if (limit <= 0) {
+            limit = 0;
+            break;
+          }
+        }
+        char c = chars[position];
+        if (c < 128 && NIBBLE[c] >= 0) {
+          if (++digits > 2)
+            throw new NumberFormatException("A hex value has more than two digits.");
+          value = (value << 4) | NIBBLE[c];
+          position++;
+        }
+        else if (Character.isWhitespace(c)) {
+          position++;
+          if (digits > 0) {
+            buf[off + n++] = (byte) value;
+            value = 0;
+            digits = 0;
+          }
+        }
+        else
+          throw new NumberFormatException("'" + c + "' is not a hex digit.");
+      }
+      if (digits > 0) //the text ended straight after a value
+        buf[off + n++] = (byte) value;
+      return n;
+    }
+
+    /**
+     * Closes the underlying Reader.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  /**
+   * Checks the codec against String.format and Scanner, and times both on 4 MiB.
+   */
+  public static void main(String[] args) throws IOException {
+    byte[] bytes = new byte[4 * 1024 * 1024];
+    new java.util.Random(1).nextBytes(bytes);
+
+    long t = System.nanoTime();
+    StringBuilder legacy = new StringBuilder();
+    for (byte b : bytes)
+      legacy.append(String.format("%02X", b & 0xff)).append(' ');
+    long formatTime = System.nanoTime() - t;
+
+    t = System.nanoTime();
+    String hex = encode(bytes);
+    long encodeTime = System.nanoTime() - t;
+    BlockCipherEngines.check("Encode == String.format", hex.equals(legacy.toString()));
+
+    t = System.nanoTime();
+    Scanner scanner = new Scanner(hex);
+    byte[] scanned = new byte[bytes.length];
+    for (int i = 0; i < scanned.length; i++)
+      scanned[i] = (byte) Short.parseShort(scanner.next(), 16);
+    long scanTime = System.nanoTime() - t;
+
+    t = System.nanoTime();
+    Decoder decoder = new Decoder(new StringReader(hex));
+    byte[] decoded = new byte[bytes.length + 1];
+    int n = decoder.read(decoded, 0, decoded.length);
+    long decodeTime = System.nanoTime() - t;
+    BlockCipherEngines.check("Decode == original", n == bytes.length && Arrays.equals(Arrays.copyOf(decoded, n), bytes));
+
+    n = new Decoder(new StringReader(" a 0b\n\tFF\r\n7")).read(decoded, 0, 10); //loose spacing, lower case, one digit, no trailing space
+    BlockCipherEngines.check("Loose layout", n == 4 && decoded[0] == 0x0a && decoded[1] == 0x0b && decoded[2] == (byte) 0xff && decoded[3] == 7);
+    BlockCipherEngines.check("Compact hex round trip", toHex(fromHex("00aB7fFF")).equals("00ab7fff")
+                             && Arrays.equals(fromHex(toHex(bytes)), bytes));
+
+    System.out.printf("4 MiB: encode %d ms (String.format %d ms), decode %d ms (Scanner %d ms)%n",
+                      encodeTime / 1000000, formatTime / 1000000, decodeTime / 1000000, scanTime / 1000000);
+  }
+}
@@ -1,11 +1,9 @@
-import java.security.SecureRandom;
-
 /*
  * Key - defines a key. This class mostly exists so that Keys can be easily
  * printed for testing purposes. It can also generate a random key.
  *
  * @see KeyExpander
- * @see SecureRandom
+ * @see CTRDRBG
  * @author Seb Kryspin
  * @version 1.0
  */
@@ -17,9 +15,7 @@ public class Key {
    *
    */
   public Key(){
-    SecureRandom random = new SecureRandom();
-    byte bytes[] = new byte[16];
-    random.nextBytes(bytes);
+    byte bytes[] = CTRDRBG.current().nextBytes(16); //this thread's generator, seeded once from SecureRandom
     int b = 0;
     for (int i = 0; i < 4; i++) {
       for (int j = 0; j < 4; j++) {
@@ -45,6 +41,20 @@ public class Key {
    */
   public short[][] getKeyValue() {return keyValue;}
 
+  /**
+   * Returns the key as 16 bytes in column-major order, the order the tools
+   * read and write keys in.
+   *
+   * @return a new array of the 16 key bytes
+   */
+  public byte[] getBytes() {
+    byte[] bytes = new byte[16];
+    for (int c = 0; c < 4; c++)
+      for (int r = 0; r < 4; r++)
+        bytes[c*4 + r] = (byte) keyValue[r][c];
+    return bytes;
+  }
+
 
   /**
    * Returns a represtation of a key as a String of hex values.
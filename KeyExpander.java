@@ -12,28 +12,9 @@
 
 public class KeyExpander {
 
-  private short[][] roundKeys = new short[4][44]; //a set of round keys
-
-  //the Rijndael sBox, used for SubBytes()
-  private static short[][] sBox =
-	{{0x63,	0x7c,	0x77,	0x7b,	0xf2,	0x6b,	0x6f,	0xc5,	0x30,	0x01,	0x67,	0x2b,	0xfe,	0xd7,	0xab,	0x76},
-	{0xca,	0x82,	0xc9,	0x7d,	0xfa,	0x59,	0x47,	0xf0,	0xad,	0xd4,	0xa2,	0xaf,	0x9c,	0xa4,	0x72,	0xc0},
-	{0xb7,	0xfd,	0x93,	0x26,	0x36,	0x3f,	0xf7,	0xcc,	0x34,	0xa5,	0xe5,	0xf1,	0x71,	0xd8,	0x31,	0x15},
-	{0x04,	0xc7,	0x23,	0xc3,	0x18,	0x96,	0x05,	0x9a,	0x07,	0x12,	0x80,	0xe2,	0xeb,	0x27,	0xb2,	0x75},
-	{0x09,	0x83,	0x2c,	0x1a,	0x1b,	0x6e,	0x5a,	0xa0,	0x52,	0x3b,	0xd6,	0xb3,	0x29,	0xe3,	0x2f,	0x84},
-	{0x53,	0xd1,	0x00,	0xed,	0x20,	0xfc,	0xb1,	0x5b,	0x6a,	0xcb,	0xbe,	0x39,	0x4a,	0x4c,	0x58,	0xcf},
-	{0xd0,	0xef,	0xaa,	0xfb,	0x43,	0x4d,	0x33,	0x85,	0x45,	0xf9,	0x02,	0x7f,	0x50,	0x3c,	0x9f,	0xa8},
-	{0x51,	0xa3,	0x40,	0x8f,	0x92,	0x9d,	0x38,	0xf5,	0xbc,	0xb6,	0xda,	0x21,	0x10,	0xff,	0xf3,	0xd2},
-	{0xcd,	0x0c,	0x13,	0xec,	0x5f,	0x97,	0x44,	0x17,	0xc4,	0xa7,	0x7e,	0x3d,	0x64,	0x5d,	0x19,	0x73},
-	{0x60,	0x81,	0x4f,	0xdc,	0x22,	0x2a,	0x90,	0x88,	0x46,	0xee,	0xb8,	0x14,	0xde,	0x5e,	0x0b,	0xdb},
-	{0xe0,	0x32,	0x3a,	0x0a,	0x49,	0x06,	0x24,	0x5c,	0xc2,	0xd3,	0xac,	0x62,	0x91,	0x95,	0xe4,	0x79},
-	{0xe7,	0xc8,	0x37,	0x6d,	0x8d,	0xd5,	0x4e,	0xa9,	0x6c,	0x56,	0xf4,	0xea,	0x65,	0x7a,	0xae,	0x08},
-	{0xba,	0x78,	0x25,	0x2e,	0x1c,	0xa6,	0xb4,	0xc6,	0xe8,	0xdd,	0x74,	0x1f,	0x4b,	0xbd,	0x8b,	0x8a},
-	{0x70,	0x3e,	0xb5,	0x66,	0x48,	0x03,	0xf6,	0x0e,	0x61,	0x35,	0x57,	0xb9,	0x86,	0xc1,	0x1d, 0x9e},
-	{0xe1,	0xf8,	0x98,	0x11,	0x69,	0xd9,	0x8e,	0x94,	0x9b,	0x1e,	0x87,	0xe9,	0xce,	0x55,	0x28,	0xdf},
-	{0x8c,	0xa1,	0x89,	0x0d,	0xbf,	0xe6,	0x42,	0x68, 0x41,	0x99,	0x2d,	0x0f,	0xb0,	0x54,	0xbb,	0x16}};
-
-  private static short[][] rCon = {{0x01, 0x02, 0x04, 0x08, 0x10,0x20,0x40,0x80,0x1b,0x36}, {0x0, 0x0, 0x0, 0x0, 0x0, 0x0, 0x0, 0x0, 0x0, 0x0,}, {0x0, 0x0, 0x0, 0x0, 0x0, 0x0, 0x0, 0x0, 0x0, 0x0}, {0x0, 0x0, 0x0, 0x0, 0x0, 0x0, 0x0, 0x0, 0x0, 0x0}}; //the roundconstant array
+  private final int[] roundKeys = new int[44]; //the 44 round key columns, each packed into an int with row 0 in the high byte
+
+  private static int[] rCon = {0x01000000, 0x02000000, 0x04000000, 0x08000000, 0x10000000, 0x20000000, 0x40000000, 0x80000000, 0x1b000000, 0x36000000}; //the round constant columns, packed like roundKeys
 
 
 
@@ -43,132 +24,76 @@ public class KeyExpander {
    * @param k an initial Key
    */
   public KeyExpander(Key k) {
-    byte row = 0;
-    byte column = 0;
-
-    for (row = 0; row < 4; row++)
-      for (column = 0; column < 4; column++)
-        roundKeys[row][column] = k.getKeyValue()[row][column]; //fills in the initial key
+    short[][] key = k.getKeyValue();
+    for (int column = 0; column < 4; column++) //fills in the initial key
+      roundKeys[column] = (key[0][column] << 24) | (key[1][column] << 16) | (key[2][column] << 8) | key[3][column];
 
-    byte round = 0;
-    for (column = 4; column < 44; column++) { //calculates the additional keys
+    int round = 0;
+    for (int column = 4; column < 44; column++) { //calculates the additional keys
+      int temp = roundKeys[column-1];
       if (column % 4 == 0) {
-        RotWord(column-1, column);
-
-        SubBytes(column);
-
-        XORandRcon(column, round);
+        temp = SubWord(RotWord(temp)) ^ rCon[round];
         round++;
       }
-      else {
-        XORColumns(column-1, column-4, column);
-      }
+      roundKeys[column] = roundKeys[column-4] ^ temp;
     }
   }
 
   /**
    * Returns the ith key generated from the key expansion algorithm.
    *
+   * This copies the key into a new array, which is convenient for printing. The
+   * cipher engines use getRoundKeyWords() instead, which does not copy.
+   *
    * @param i the round number
    * @return the key for round i in AES encryption, as a 2d short array
    */
   public short[][] getRoundKey(int i) {
-    int cStart = i*4;
-    int cEnd = cStart + 4;
     short[][] result = new short[4][4];
-    int resultColumn = 0;
-    for (int row = 0; row < 4; row++){
-      resultColumn = 0;
-      for (int column = cStart; column < cEnd; column++) {
-        result[row][resultColumn] = roundKeys[row][column];
-        resultColumn++;
-      }
+    for (int column = 0; column < 4; column++) {
+      int word = roundKeys[i*4 + column];
+      for (int row = 0; row < 4; row++)
+        result[row][column] = (short) ((word >>> (24 - 8*row)) & 0xff);
     }
     return result;
   }
 
   /**
-   * Puts the oldColumn, rotated by 1 byte, into the newColumn of roundKeys
+   * Returns the whole key schedule as 44 packed columns, without copying.
    *
-   * @param column the column to rotate, as an index
-   * @param the new column to create with the rotated column, as an index
-   */
-  private void RotWord(int oldColumn, int newColumn) {
-    for (int row = 0; row < 3; row++)
-      roundKeys[row][newColumn] = roundKeys[row+1][oldColumn];
-    roundKeys[3][newColumn] = roundKeys[0][oldColumn];
-  }
-
-
-  /**
-   * Computes  c1 XOR c2 and puts the result in roundKeys' newColumn
+   * Column c of round i is at index 4*i + c, with row 0 in the high byte, so
+   * byte (row, c) of round i is (getRoundKeyWords()[4*i + c] >>> (24 - 8*row)) & 0xff.
+   * The array is this expander's own storage and must not be modified.
    *
-   * @param a column of roundKeys to xor
-   * @param a column of roundKeys to xor
-   * @param a column of roundKeys to put the result in
+   * @return the 44 round key columns
    */
-  private void XORColumns(int c1, int c2, int newColumn) {
-    for (int row = 0; row < 4; row++) {
-      int intermediate = roundKeys[row][c1] ^ roundKeys[row][c2];
-      roundKeys[row][newColumn] = new Integer(intermediate).shortValue(); //have to manually convert to a short
-    }
+  public int[] getRoundKeyWords() {
+    return roundKeys;
   }
 
   /**
-   * Substitutes all bytes in roundKeys newColumn using the S-box
+   * Rotates a column up by one byte.
    *
-   * @param newColumn the int value of the column to substitute
+   * @param word the packed column to rotate
+   * @return the rotated column
    */
-  private void SubBytes(int newColumn) {
-    for (int row = 0; row < 4; row++) {
-      short value = roundKeys[row][newColumn];
-      roundKeys[row][newColumn] = sBox[highNibble(value)][lowNibble(value)];
-    }
+  private static int RotWord(int word) {
+    return Integer.rotateLeft(word, 8);
   }
 
   /**
-   * XORS the newColumn with the appropriate column (i-4) and the appropriate
-   * rCon and puts the result in newColumn.
+   * Substitutes all four bytes of a column using the S-box.
    *
-   * This operation should only be used when newColumn is a multiple of 4 as part
-   * of the key expansion algorithm.
-   * @param newColumn the column to manipulate
-   * @param round the round of expansion we are on, so we can use the correct rCon
+   * @param word the packed column to substitute
+   * @return the substituted column
    */
-  private void XORandRcon(int newColumn, int round) {
-    for (int row = 0; row < 4; row++) {
-      int old = roundKeys[row][newColumn-4];
-      int newVal = roundKeys[row][newColumn];
-      int intermediate = (old^newVal^rCon[row][round]);
-      roundKeys[row][newColumn] = new Integer(intermediate).shortValue(); //had to manually convert it to get around Java's weird Binary Numeric Promotion
-    }
-  }
-
-  /**
-   * Returns the top nibble of a byte value.
-   *
-   * NOTE: Returns the top nibble for an 8-bit value only.
-   *
-   * @param x the byte we are considering (as a short)
-   * @return the top nibble
-   */
-  public static int highNibble(short x) {
-    return ((short) 0xf0 & (short) x)>>4;
-  }
-
-  /**
-   * Returns the low nibble of a byte value.
-   *
-   * NOTE: Returns the low nibble for an 8-bit value only.
-   *
-   * @param x the byte we are considering (as a short)
-   * @return the lowest nibble
-   */
-  public static int lowNibble(short x) {
-    return ((short) 0xf & (short) x);
+  private static int SubWord(int word) {
+    int result = 0;
+    for (int shift = 24; shift >= 0; shift -= 8)
+      result |= GaloisField.SBOX[(word >>> shift) & 0xff] << shift;
+    return result;
   }
 
-
   /**
    * Prints the ith round key
    *
@@ -0,0 +1,53 @@
+/**
+ * KeySchedule - holds everything derived from one Key that the ciphers need:
+ * the expanded encryption round keys and, once they are first asked for, the
+ * decryption round keys for the equivalent inverse cipher.
+ *
+ * One KeySchedule can back any number of AESEncrypters and AESDecrypters, so
+ * a key that is used in both directions is only expanded once. KeyScheduleCache
+ * hands out shared KeySchedules by key.
+ *
+ * @see KeyExpander
+ * @see KeyScheduleCache
+ * @author Seb Kryspin
+ * @version 1.0
+ */
+public class KeySchedule {
+  private final KeyExpander expand; //the encryption round keys
+  private volatile int[] inverseRoundKeys; //the decryption round keys, derived on first use
+
+  /**
+   * Expands the given key.
+   *
+   * @param k the key to expand
+   */
+  public KeySchedule(Key k) {
+    expand = new KeyExpander(k);
+  }
+
+  /**
+   * Returns the expanded encryption key.
+   *
+   * @return the KeyExpander holding the encryption round keys
+   */
+  public KeyExpander getExpander() {
+    return expand;
+  }
+
+  /**
+   * Returns the decryption round keys for the equivalent inverse cipher, in the
+   * order they are used. They are derived the first time this is called and
+   * reused after that. The array must not be modified.
+   *
+   * @return the 44 decryption round key columns
+   * @see TTableDecrypter
+   */
+  public int[] getInverseRoundKeyWords() {
+    int[] keys = inverseRoundKeys;
+    if (keys == null) { //two threads may both derive them, but they get identical arrays
+      keys = TTableDecrypter.invertRoundKeys(expand.getRoundKeyWords());
+      inverseRoundKeys = keys;
+    }
+    return keys;
+  }
+}
@@ -0,0 +1,189 @@
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * KeyScheduleCache - a size-bounded cache of KeySchedules, looked up by the
+ * 16 key bytes. When it is full, the least recently used schedule is evicted.
+ *
+ * Creating an AESEncrypter or AESDecrypter from a Key goes through the shared
+ * cache, so a key that is used over and over (or in both directions) is only
+ * expanded once while it stays in the cache. Hit, miss and eviction counts are
+ * kept so the cache size can be tuned.
+ *
+ * All methods are thread safe.
+ *
+ * @see KeySchedule
+ * @author Seb Kryspin
+ * @version 1.0
+ */
+public class KeyScheduleCache {
+  /** The number of schedules the shared cache holds. */
+  public static final int DEFAULT_CAPACITY = 1024;
+
+  private static final KeyScheduleCache shared = new KeyScheduleCache(DEFAULT_CAPACITY);
+
+  private final int capacity; //the most schedules we keep
+  private final LinkedHashMap<ByteBuffer, KeySchedule> schedules; //key bytes to schedule, in access order
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+
+  /**
+   * Creates an empty cache.
+   *
+   * @param capacity the most schedules to keep
+   * @throws IllegalArgumentException if capacity is less than 1
+   */
+  public KeyScheduleCache(int capacity) {
+    if (capacity < 1)
+      throw new IllegalArgumentException("A key schedule cache must hold at least one schedule.");
+    this.capacity = capacity;
+    schedules = new LinkedHashMap<ByteBuffer, KeySchedule>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<ByteBuffer, KeySchedule> eldest) {
+        if (size() > KeyScheduleCache.this.capacity) {
+          evictions++;
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Returns the cache that AESEncrypter and AESDecrypter use.
+   *
+   * @return the shared cache
+   */
+  public static KeyScheduleCache shared() {
+    return shared;
+  }
+
+  /**
+   * Returns the schedule for a key, expanding the key only if it is not already cached.
+   *
+   * The key is expanded outside the lock, so a miss does not hold up other
+   * threads' lookups. If two threads miss on the same key at once, both expand
+   * it but only the first schedule is kept, and both get that one.
+   *
+   * @param k the key
+   * @return the schedule for k
+   */
+  public KeySchedule get(Key k) {
+    ByteBuffer lookup = ByteBuffer.wrap(k.getBytes()); //compared by content, and the array is our own copy
+    synchronized (this) {
+      KeySchedule schedule = schedules.get(lookup);
+      if (schedule != null) {
+        hits++;
+        return schedule;
+      }
+      misses++;
+    }
+    KeySchedule expanded = new KeySchedule(k);
+    synchronized (this) {
+      KeySchedule raced = schedules.putIfAbsent(lookup, expanded);
+      return raced != null ? raced : expanded;
+    }
+  }
+
+  /**
+   * Returns the number of lookups that found a cached schedule.
+   *
+   * @return the hit count
+   */
+  public synchronized long getHits() {return hits;}
+
+  /**
+   * Returns the number of lookups that had to expand the key.
+   *
+   * @return the miss count
+   */
+  public synchronized long getMisses() {return misses;}
+
+  /**
+   * Returns the number of schedules evicted to make room for others.
+   *
+   * @return the eviction count
+   */
+  public synchronized long getEvictions() {return evictions;}
+
+  /**
+   * Returns the number of schedules currently cached.
+   *
+   * @return the cache size
+   */
+  public synchronized int size() {return schedules.size();}
+
+  /**
+   * Removes every schedule from the cache. The counters are kept.
+   */
+  public synchronized void clear() {
+    schedules.clear();
+  }
+
+  /**
+   * Returns a summary of the cache's counters.
+   *
+   * @return the size, capacity, hits, misses and evictions as a String
+   */
+  public synchronized String toString() {
+    return "KeyScheduleCache[size=" + schedules.size() + ", capacity=" + capacity + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + "]";
+  }
+
+  /**
+   * Checks the hit, miss and eviction counts, the least-recently-used order,
+   * that AESEncrypter and AESDecrypter share one schedule, and that threads
+   * missing on the same keys at once all get the same schedules.
+   */
+  public static void main(String[] args) throws InterruptedException {
+    Key a = new Key();
+    Key b = new Key();
+    Key c = new Key();
+    KeyScheduleCache cache = new KeyScheduleCache(2);
+    KeySchedule first = cache.get(a);
+    BlockCipherEngines.check("Same key, same schedule", cache.get(new Key(a.getKeyValue())) == first);
+    BlockCipherEngines.check("Hit and miss counts", cache.getHits() == 1 && cache.getMisses() == 1 && cache.getEvictions() == 0);
+
+    cache.get(b);
+    cache.get(a); //a is now more recently used than b
+    cache.get(c); //so b is evicted
+    long misses = cache.getMisses();
+    cache.get(a);
+    cache.get(c);
+    boolean aAndCKept = cache.getMisses() == misses;
+    cache.get(b);
+    BlockCipherEngines.check("Least recently used evicted", aAndCKept && cache.getMisses() == misses + 1
+                             && cache.getEvictions() == 2 && cache.size() == 2);
+
+    Key shared = new Key();
+    long sharedHits = shared().getHits();
+    long sharedMisses = shared().getMisses();
+    new AESEncrypter(shared);
+    new AESDecrypter(shared);
+    BlockCipherEngines.check("AESEncrypter and AESDecrypter share one schedule",
+                             shared().getMisses() == sharedMisses + 1 && shared().getHits() == sharedHits + 1);
+
+    KeyScheduleCache concurrent = new KeyScheduleCache(DEFAULT_CAPACITY);
+    Key[] keys = new Key[200];
+    for (int i = 0; i < keys.length; i++)
+      keys[i] = new Key();
+    KeySchedule[][] seen = new KeySchedule[8][keys.length];
+    Thread[] threads = new Thread[seen.length];
+    for (int t = 0; t < threads.length; t++) {
+      final int index = t;
+      threads[t] = new Thread(() -> {
+        for (int i = 0; i < keys.length; i++)
+          seen[index][i] = concurrent.get(keys[(i + index * 25) % keys.length]);
+      });
+      threads[t].start();
+    }
+    for (Thread t : threads)
+      t.join();
+    boolean same = concurrent.size() == keys.length;
+    for (int t = 0; t < seen.length; t++)
+      for (int i = 0; i < keys.length; i++)
+        same &= seen[t][i] == concurrent.get(keys[(i + t * 25) % keys.length]);
+    BlockCipherEngines.check("Concurrent misses share one schedule per key", same);
+    System.out.println(concurrent);
+  }
+}
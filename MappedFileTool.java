@@ -0,0 +1,226 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Encrypts or decrypts files of any size, including many gigabytes, with AES in
+ * CTR mode over memory-mapped files. The input and output are mapped with
+ * FileChannel.map one WINDOW_SIZE window at a time. Each window is split into
+ * chunks on a ForkJoinPool, and each chunk's keystream is XORed straight into
+ * the mapped output, eight bytes at a time. No Reader, no charset decoding and
+ * no intermediate copy of the data are involved.
+ *
+ * By default the encryption is saved as a CipherContainer (mode CTR) in
+ * filename + "_encrypted.aes", and decryption turns it back into
+ * filename + "_decrypted.txt". With -inplace the file itself is encrypted or
+ * decrypted where it lies, with no header. The counter block is saved in
+ * filename + "_IV.txt" on encryption and must be given on decryption.
+ *
+ *   java MappedFileTool encrypt big.txt key.txt
+ *   java MappedFileTool decrypt big_encrypted.aes key.txt
+ *   java MappedFileTool -inplace encrypt big.txt key.txt
+ *   java MappedFileTool -inplace decrypt big.txt key.txt big_IV.txt
+ *
+ * Use -Daes.engine=jca for the processor's AES instructions.
+ *
+ * @see CTRMode
+ * @see CipherContainer
+ * @author Seb Kryspin
+ * @version 1.0
+ */
+public class MappedFileTool {
+  /** The number of bytes mapped at a time; a multiple of CHUNK_SIZE. */
+  public static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+  /** The number of bytes each parallel task handles; a multiple of 16. */
+  public static final int CHUNK_SIZE = 256 * 1024;
+
+  private static final int STRIDE = 4096; //keystream bytes generated per encryptBlocks call
+
+  /**
+   * Encrypts a file into a CTR CipherContainer.
+   *
+   * @param filename the file to encrypt
+   * @param aes the engine to encrypt with
+   * @return the name of the container file
+   * @throws IOException if an I/O error occurs
+   */
+  public static String encryptFile(String filename, BlockCipherEngine aes) throws IOException {
+    String writename = filename.replace(".txt", "") + "_encrypted" + CipherContainer.EXTENSION;
+    try (RandomAccessFile in = new RandomAccessFile(filename, "r");
+         RandomAccessFile out = new RandomAccessFile(writename, "rw")) {
+      long length = in.length();
+      CipherContainer header = new CipherContainer(CipherContainer.MODE_CTR, CTRDRBG.current().nextBytes(16), length);
+      out.setLength(CipherContainer.HEADER_LENGTH + length);
+      out.getChannel().write(ByteBuffer.wrap(header.toBytes()), 0);
+      crypt(aes, header.getIV(), in.getChannel(), 0, out.getChannel(), CipherContainer.HEADER_LENGTH, length);
+    }
+    return writename;
+  }
+
+  /**
+   * Decrypts a CTR CipherContainer.
+   *
+   * @param filename the container to decrypt
+   * @param aes the engine to decrypt with
+   * @return the name of the decrypted file
+   * @throws IOException if the file is not a CTR container, or an I/O error occurs
+   */
+  public static String decryptFile(String filename, BlockCipherEngine aes) throws IOException {
+    String writename = filename.replace("_encrypted" + CipherContainer.EXTENSION, "") + "_decrypted.txt";
+    try (RandomAccessFile in = new RandomAccessFile(filename, "r");
+         RandomAccessFile out = new RandomAccessFile(writename, "rw")) {
+      byte[] bytes = new byte[CipherContainer.HEADER_LENGTH];
+      in.readFully(bytes);
+      CipherContainer header = CipherContainer.fromBytes(bytes);
+      if (header.getMode() != CipherContainer.MODE_CTR)
+        throw new IOException(filename + " is not a CTR container; use CBCDecryptTool for CBC containers.");
+      long length = header.getPayloadLength();
+      if (in.length() < CipherContainer.HEADER_LENGTH + length)
+        throw new IOException("The ciphertext in " + filename + " is truncated.");
+      out.setLength(length);
+      crypt(aes, header.getIV(), in.getChannel(), CipherContainer.HEADER_LENGTH, out.getChannel(), 0, length);
+    }
+    return writename;
+  }
+
+  /**
+   * Encrypts or decrypts a file where it lies, with no header.
+   *
+   * @param filename the file to transform
+   * @param aes the engine to use
+   * @param counter the 16-byte initial counter block
+   * @throws IOException if an I/O error occurs
+   */
+  public static void cryptInPlace(String filename, BlockCipherEngine aes, byte[] counter) throws IOException {
+    try (RandomAccessFile file = new RandomAccessFile(filename, "rw")) {
+      crypt(aes, counter, file.getChannel(), 0, file.getChannel(), 0, file.length());
+    }
+  }
+
+  /**
+   * XORs length bytes of one channel with the CTR keystream into another (or the
+   * same) channel, mapping one window of each at a time.
+   *
+   * @param aes the engine to use; must be safe to share between threads
+   * @param counter the 16-byte initial counter block
+   * @param in the channel to read
+   * @param inStart the position of the data in in
+   * @param out the channel to write, which must already be long enough
+   * @param outStart the position in out at which to write
+   * @param length the number of bytes
+   * @throws IOException if an I/O error occurs
+   */
+  public static void crypt(BlockCipherEngine aes, byte[] counter, FileChannel in, long inStart, FileChannel out, long outStart, long length) throws IOException {
+    boolean inPlace = in == out && inStart == outStart;
+    for (long done = 0; done < length; done += WINDOW_SIZE) {
+      int size = (int) Math.min(WINDOW_SIZE, length - done);
+      MappedByteBuffer target = out.map(FileChannel.MapMode.READ_WRITE, outStart + done, size);
+      MappedByteBuffer source = inPlace ? target : in.map(FileChannel.MapMode.READ_ONLY, inStart + done, size);
+      ForkJoinPool.commonPool().invoke(new Chunks(aes, counter, done, source, target, 0, size));
+      target.force();
+    }
+  }
+
+  //XORs one range of a window with its keystream, splitting it into CHUNK_SIZE tasks
+  private static class Chunks extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final BlockCipherEngine aes;
+    private final byte[] counter;
+    private final long windowStart; //the offset of the window from the start of the data
+    private final ByteBuffer source, target;
+    private final int from, to;
+
+    Chunks(BlockCipherEngine aes, byte[] counter, long windowStart, ByteBuffer source, ByteBuffer target, int from, int to) {
+      this.aes = aes;
+      this.counter = counter;
+      this.windowStart = windowStart;
+      this.source = source;
+      this.target = target;
+      this.from = from;
+      this.to = to;
+    }
+
+    protected void compute() {
+      if (to - from > CHUNK_SIZE) {
+        int chunks = (to - from + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        int middle = from + (chunks / 2) * CHUNK_SIZE; //on a chunk boundary, so counters stay block-aligned
+        invokeAll(new Chunks(aes, counter, windowStart, source, target, from, middle),
+                  new Chunks(aes, counter, windowStart, source, target, middle, to));
+        return;
+      }
+      byte[] block = counter.clone();
+      CTRMode.increment(block, (windowStart + from) / 16);
+      byte[] keystream = new byte[STRIDE];
+      ByteBuffer words = ByteBuffer.wrap(keystream); //the keystream read as longs, in the same byte order as the mapped buffers
+      for (int i = from; i < to; i += STRIDE) {
+        int n = Math.min(STRIDE, to - i);
+        int blocks = (n + 15) / 16;
+        for (int b = 0; b < blocks; b++) {
+          System.arraycopy(block, 0, keystream, b*16, 16);
+          CTRMode.increment(block, 1);
+        }
+        aes.encryptBlocks(keystream, 0, keystream, 0, blocks);
+        int j = 0;
+        for (; j + 8 <= n; j += 8) //absolute gets and puts, so the tasks never share a buffer position
+          target.putLong(i + j, source.getLong(i + j) ^ words.getLong(j));
+        for (; j < n; j++)
+          target.put(i + j, (byte) (source.get(i + j) ^ keystream[j]));
+      }
+    }
+  }
+
+  /**
+   * Encrypts or decrypts a file from the command line.
+   *
+   * @param args [-inplace] encrypt|decrypt file keyfile [IV file, for -inplace decrypt]
+   * @throws IOException if an I/O error occurs
+   */
+  public static void main(String[] args) throws IOException {
+    boolean inPlace = args.length > 0 && args[0].equals("-inplace");
+    if (inPlace)
+      args = Arrays.copyOfRange(args, 1, args.length);
+    try {
+      String command = args[0];
+      String file = args[1];
+      BlockCipherEngine aes = BlockCipherEngines.create(new Key(CBCDecryptTool.readKeyorIVFile(args[2])), RoundTracer.NONE);
+      long t = System.nanoTime();
+      long length = new File(file).length();
+      if (command.equals("encrypt") && inPlace) {
+        byte[] counter = CTRDRBG.current().nextBytes(16);
+        String ivName = file.replace(".txt", "") + "_IV.txt";
+        Writer writer = new BufferedWriter(new FileWriter(ivName));
+        HexCodec.encode(counter, 0, 16, writer);
+        writer.close();
+        System.out.println("Saved randomly generated counter block in " + ivName);
+        cryptInPlace(file, aes, counter);
+        System.out.println("Encrypted " + file + " in place");
+      }
+      else if (command.equals("decrypt") && inPlace) {
+        cryptInPlace(file, aes, BlockCipherEngines.toBytes(CBCDecryptTool.readKeyorIVFile(args[3])));
+        System.out.println("Decrypted " + file + " in place");
+      }
+      else if (command.equals("encrypt"))
+        System.out.println("Encrypted " + file + " to file " + encryptFile(file, aes));
+      else if (command.equals("decrypt"))
+        System.out.println("Decrypted " + file + " to file " + decryptFile(file, aes));
+      else
+        throw new ArrayIndexOutOfBoundsException();
+      double seconds = (System.nanoTime() - t) / 1e9;
+      System.out.printf("%d bytes in %.2f s (%.0f MB/s, %s engine)%n", length, seconds, length / seconds / 1e6, aes.getName());
+    }
+    catch (ArrayIndexOutOfBoundsException e) {
+      System.out.println("Usage: java MappedFileTool [-inplace] encrypt|decrypt file keyfile [IV file, for -inplace decrypt]");
+    }
+    catch (FileNotFoundException e) {
+      System.out.println("The specified file could not be found. Please ensure the file is in the current directory, or that path name is correct.");
+    }
+    catch (NumberFormatException e) {
+      System.out.println(e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,264 @@
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * OFBMode - AES in output feedback (OFB) mode, as in NIST SP 800-38A. The
+ * keystream is E(IV), E(E(IV)), ... and is XORed with the message, so encryption
+ * and decryption are the same operation and the last block may be partial.
+ *
+ * The keystream never depends on the data, so a Keystream generates it ahead of
+ * time on a background thread. It fills segments of SEGMENT_BLOCKS blocks into a
+ * small ring of reusable buffers, and the caller's thread only XORs. The ring is
+ * bounded, so memory use is fixed however long the message is. A thread and a
+ * ring only pay for themselves on long messages or streams, so process handles
+ * messages shorter than BACKGROUND_THRESHOLD on the caller's thread.
+ *
+ * @see CFBMode
+ * @see BlockCipherEngine
+ * @author Seb Kryspin
+ * @version 1.0
+ */
+public class OFBMode {
+  /** The number of keystream blocks in each segment the background thread fills. */
+  public static final int SEGMENT_BLOCKS = 1024;
+
+  /** The number of filled segments the background thread may run ahead by. */
+  public static final int SEGMENTS_AHEAD = 4;
+
+  /** The shortest message, in bytes, that process generates the keystream for in the background. */
+  public static final int BACKGROUND_THRESHOLD = SEGMENTS_AHEAD * SEGMENT_BLOCKS * 16; //shorter fits in one fill of the ring
+
+  private final BlockCipherEngine engine;
+
+  /**
+   * Creates an OFB mode over the configured engine (see BlockCipherEngines).
+   *
+   * @param k the key to use
+   */
+  public OFBMode(Key k) {
+    this(BlockCipherEngines.create(k, RoundTracer.NONE));
+  }
+
+  /**
+   * Creates an OFB mode over the given engine.
+   *
+   * @param engine the block cipher; must be safe to use from the background thread
+   */
+  public OFBMode(BlockCipherEngine engine) {
+    this.engine = engine;
+  }
+
+  /**
+   * Starts generating the keystream for an IV on a background thread. Close the
+   * Keystream when done with it to stop the thread.
+   *
+   * @param iv the 16-byte initialization vector
+   * @return the keystream
+   */
+  public Keystream keystream(byte[] iv) {
+    checkIV(iv);
+    return new Keystream(iv);
+  }
+
+  /**
+   * Encrypts or decrypts len bytes. From BACKGROUND_THRESHOLD bytes up, the
+   * keystream is generated alongside on a background thread; shorter messages
+   * go through processSequential. in and out may be the same region.
+   *
+   * @param iv the 16-byte initialization vector
+   * @param in the input array
+   * @param inOff the offset of the input in in
+   * @param out the output array
+   * @param outOff the offset in out at which to write the output
+   * @param len the number of bytes to process
+   */
+  public void process(byte[] iv, byte[] in, int inOff, byte[] out, int outOff, int len) {
+    if (len < BACKGROUND_THRESHOLD) {
+      processSequential(iv, in, inOff, out, outOff, len);
+      return;
+    }
+    try (Keystream keystream = keystream(iv)) {
+      keystream.xor(in, inOff, out, outOff, len);
+    }
+  }
+
+  /**
+   * Encrypts or decrypts len bytes on the calling thread alone.
+   *
+   * @param iv the 16-byte initialization vector
+   * @param in the input array
+   * @param inOff the offset of the input in in
+   * @param out the output array
+   * @param outOff the offset in out at which to write the output
+   * @param len the number of bytes to process
+   */
+  public void processSequential(byte[] iv, byte[] in, int inOff, byte[] out, int outOff, int len) {
+    checkIV(iv);
+    byte[] feedback = iv.clone();
+    for (int i = 0; i < len; i += 16) {
+      engine.encryptBlock(feedback, 0, feedback, 0);
+      for (int j = 0; j < 16 && i + j < len; j++)
+        out[outOff + i + j] = (byte) (in[inOff + i + j] ^ feedback[j]);
+    }
+  }
+
+  private static void checkIV(byte[] iv) {
+    if (iv.length != 16)
+      throw new IllegalArgumentException("The IV must be 16 bytes, not " + iv.length + ".");
+  }
+
+  /**
+   * Keystream - the OFB keystream for one IV, generated ahead on a background
+   * thread. Only one thread may read from a Keystream.
+   */
+  public class Keystream implements AutoCloseable {
+    private final BlockingQueue<byte[]> filled = new ArrayBlockingQueue<byte[]>(SEGMENTS_AHEAD);
+    private final BlockingQueue<byte[]> empty = new ArrayBlockingQueue<byte[]>(SEGMENTS_AHEAD + 1);
+    private final Thread producer;
+    private byte[] segment; //the segment being read, and the position in it
+    private int position;
+
+    private Keystream(byte[] iv) {
+      for (int i = 0; i <= SEGMENTS_AHEAD; i++)
+        empty.add(new byte[SEGMENT_BLOCKS * 16]);
+      byte[] feedback = iv.clone();
+      producer = new Thread(() -> {
+        try {
+          while (true) {
+            byte[] buffer = empty.take();
+            for (int b = 0; b < buffer.length; b += 16) {
+              engine.encryptBlock(feedback, 0, feedback, 0);
+              System.arraycopy(feedback, 0, buffer, b, 16);
+            }
+            filled.put(buffer);
+          }
+        }
+        catch (InterruptedException e) {
+          //closed
+        }
+      }, "OFB keystream");
+      producer.setDaemon(true);
+      producer.start();
+    }
+
+    /**
+     * XORs the next len bytes of keystream into a buffer. in and out may be the same region.
+     *
+     * @param in the input array
+     * @param inOff the offset of the input in in
+     * @param out the output array
+     * @param outOff the offset in out at which to write the output
+     * @param len the number of bytes to process
+     */
+    public void xor(byte[] in, int inOff, byte[] out, int outOff, int len) {
+      int done = 0;
+      while (done < len) {
+        if (segment == null || position == segment.length)
+          nextSegment();
+        int n = Math.min(len - done, segment.length - position);
+        for (int j = 0; j < n; j++)
+          out[outOff + done + j] = (byte) (in[inOff + done + j] ^ segment[position + j]);
+        position += n;
+        done += n;
+      }
+    }
+
+    //Hands the used segment back to the producer and waits for the next one
+    private void nextSegment() {
+      try {
+        if (segment != null)
+          empty.put(segment);
+        segment = filled.take();
+        position = 0;
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while waiting for the OFB keystream.");
+      }
+    }
+
+    /**
+     * Stops the background thread.
+     */
+    public void close() {
+      producer.interrupt();
+    }
+  }
+
+  /**
+   * Checks OFB mode against the SP 800-38A example and against the JDK's AES/OFB,
+   * including a message read in uneven pieces, and times the precomputed
+   * keystream against the single-threaded path, for long and for short messages.
+   */
+  public static void main(String[] args) throws Exception {
+    //NIST SP 800-38A F.4.1, OFB-AES128.Encrypt
+    byte[] keyBytes = HexCodec.fromHex("2b7e151628aed2a6abf7158809cf4f3c");
+    byte[] iv = HexCodec.fromHex("000102030405060708090a0b0c0d0e0f");
+    byte[] plaintext = HexCodec.fromHex("6bc1bee22e409f96e93d7e117393172aae2d8a571e03ac9c9eb76fac45af8e51"
+                                      + "30c81c46a35ce411e5fbc1191a0a52eff69f2445df4f9b17ad2b417be66c3710");
+    String expected = "3b3fd92eb72dad20333449f8e83cfb4a7789508d16918f03f53c52dac54ed825"
+                    + "9740051e9c5fecf64344f7a82260edcc304c6528f659c77866a510d9c1d6ae5e";
+    OFBMode ofb = new OFBMode(new Key(BlockCipherEngines.toMatrix(keyBytes, 0)));
+    byte[] ciphertext = new byte[plaintext.length];
+    ofb.process(iv, plaintext, 0, ciphertext, 0, plaintext.length);
+    BlockCipherEngines.check("SP 800-38A F.4.1", HexCodec.toHex(ciphertext).equals(expected));
+
+    SecureRandom random = new SecureRandom();
+    random.nextBytes(keyBytes);
+    random.nextBytes(iv);
+    byte[] message = new byte[8 * 1024 * 1024 + 3];
+    random.nextBytes(message);
+    ofb = new OFBMode(new Key(BlockCipherEngines.toMatrix(keyBytes, 0)));
+    Cipher jdk = Cipher.getInstance("AES/OFB/NoPadding");
+    jdk.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(keyBytes, "AES"), new IvParameterSpec(iv));
+    byte[] reference = jdk.doFinal(message);
+
+    ciphertext = new byte[message.length];
+    try (Keystream keystream = ofb.keystream(iv)) { //uneven pieces, to cross segment boundaries mid-block
+      for (int off = 0; off < message.length; ) {
+        int n = Math.min(1 + random.nextInt(70000), message.length - off);
+        keystream.xor(message, off, ciphertext, off, n);
+        off += n;
+      }
+    }
+    BlockCipherEngines.check("Keystream == JDK AES/OFB", Arrays.equals(ciphertext, reference));
+    ofb.processSequential(iv, ciphertext, 0, ciphertext, 0, ciphertext.length);
+    BlockCipherEngines.check("Round trip", Arrays.equals(ciphertext, message));
+    boolean agrees = true;
+    for (int len : new int[] {BACKGROUND_THRESHOLD - 1, BACKGROUND_THRESHOLD}) { //either side of the switch to the background thread
+      ofb.process(iv, message, 0, ciphertext, 0, len);
+      agrees &= Arrays.equals(ciphertext, 0, len, reference, 0, len);
+    }
+    BlockCipherEngines.check("Short and long process == JDK AES/OFB", agrees);
+
+    for (int run = 0; run < 3; run++) {
+      long t = System.nanoTime();
+      ofb.processSequential(iv, message, 0, ciphertext, 0, message.length);
+      long s = System.nanoTime() - t;
+      t = System.nanoTime();
+      ofb.process(iv, message, 0, ciphertext, 0, message.length);
+      long p = System.nanoTime() - t;
+      System.out.printf("Sequential %d ms, background keystream %d ms%n", s / 1000000, p / 1000000);
+    }
+
+    byte[] small = new byte[64];
+    for (int run = 0; run < 3; run++) {
+      long t = System.nanoTime();
+      for (int m = 0; m < 10000; m++)
+        ofb.process(iv, small, 0, small, 0, small.length);
+      long p = System.nanoTime() - t;
+      t = System.nanoTime();
+      for (int m = 0; m < 10000; m++)
+        try (Keystream keystream = ofb.keystream(iv)) {
+          keystream.xor(small, 0, small, 0, small.length);
+        }
+      long k = System.nanoTime() - t;
+      System.out.printf("10000 64-byte messages: process %d ms, a Keystream each %d ms%n", p / 1000000, k / 1000000);
+    }
+  }
+}
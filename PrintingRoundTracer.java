@@ -0,0 +1,59 @@
+/**
+ * PrintingRoundTracer - a RoundTracer that prints every step of AES encryption
+ * or decryption to System.out, followed by the state matrix as hex bytes.
+ *
+ * This is the step-by-step walkthrough the tools print. Encryption steps print
+ * as "step round n" over "%02X" bytes, and decryption steps print with their
+ * own headings over unpadded "%x" bytes, exactly as the walkthroughs always have.
+ *
+ * @see RoundTracer
+ * @author Seb Kryspin
+ * @version 1.0
+ */
+public class PrintingRoundTracer implements RoundTracer {
+
+  /**
+   * Prints the name and round of a step, followed by the state matrix.
+   *
+   * @param step the name of the step that was just applied
+   * @param round the round number (0 to 10)
+   * @param state the 4x4 state matrix after the step
+   */
+  public void step(String step, int round, short[][] state) {
+    System.out.println(step + " round " + round);
+    for (int row = 0; row < 4; row++) {
+      for (int column = 0; column < 4; column++) {
+        System.out.print(String.format("%02X", state[row][column]) + " ");
+      }
+      System.out.println();
+    }
+  }
+
+  /**
+   * Prints a decryption step the way the decryption walkthrough always has: its
+   * own heading, then the state matrix as unpadded lower-case hex bytes.
+   *
+   * @param step the name of the step that was just applied
+   * @param round the round number (0 to 10)
+   * @param heading the line to print above the state
+   * @param state the 4x4 state matrix after the step
+   */
+  public void inverseStep(String step, int round, String heading, short[][] state) {
+    System.out.println(heading);
+    for (int row = 0; row < 4; row++) {
+      for (int column = 0; column < 4; column++) {
+        System.out.print(Integer.toHexString(state[row][column]) + " ");
+      }
+      System.out.println();
+    }
+  }
+
+  /**
+   * Prints a line of the walkthrough on its own.
+   *
+   * @param note the line of text
+   */
+  public void note(String note) {
+    System.out.println(note);
+  }
+}
@@ -0,0 +1,76 @@
+/**
+ * ReferenceEngine - a BlockCipherEngine backed by this project's own AESEncrypter
+ * and AESDecrypter.
+ *
+ * When it is given a tracer other than RoundTracer.NONE, every block goes through
+ * the step-by-step Encrypt() and Decrypt() so the tracer sees each step. Otherwise
+ * it uses their T-table fast paths.
+ *
+ * @see BlockCipherEngine
+ * @see AESEncrypter
+ * @see AESDecrypter
+ * @author Seb Kryspin
+ * @version 1.0
+ */
+public class ReferenceEngine implements BlockCipherEngine {
+  private final AESEncrypter encrypter;
+  private final AESDecrypter decrypter;
+  private final boolean stepByStep; //true if the tracer should see every step
+
+  /**
+   * Creates a reference engine for an expanded key.
+   *
+   * @param schedule the key schedule to use
+   * @param tracer the tracer to report each step to, or RoundTracer.NONE
+   */
+  public ReferenceEngine(KeySchedule schedule, RoundTracer tracer) {
+    encrypter = new AESEncrypter(schedule, tracer);
+    decrypter = new AESDecrypter(schedule, tracer);
+    stepByStep = tracer != RoundTracer.NONE;
+  }
+
+  /**
+   * Creates a reference engine for a key, without tracing.
+   *
+   * @param k the key to use
+   */
+  public ReferenceEngine(Key k) {
+    this(KeyScheduleCache.shared().get(k), RoundTracer.NONE);
+  }
+
+  public String getName() {
+    return "reference";
+  }
+
+  public void encryptBlock(byte[] in, int inOff, byte[] out, int outOff) {
+    if (stepByStep) {
+      short[][] ciphertext = encrypter.Encrypt(BlockCipherEngines.toMatrix(in, inOff));
+      BlockCipherEngines.toBytes(ciphertext, out, outOff);
+    }
+    else
+      encrypter.encryptBlock(in, inOff, out, outOff);
+  }
+
+  public void decryptBlock(byte[] in, int inOff, byte[] out, int outOff) {
+    if (stepByStep) {
+      short[][] plaintext = decrypter.Decrypt(BlockCipherEngines.toMatrix(in, inOff));
+      BlockCipherEngines.toBytes(plaintext, out, outOff);
+    }
+    else
+      decrypter.decryptBlock(in, inOff, out, outOff);
+  }
+
+  public void encryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks) {
+    if (stepByStep)
+      BlockCipherEngine.super.encryptBlocks(in, inOff, out, outOff, blocks);
+    else
+      encrypter.encryptBlocks(in, inOff, out, outOff, blocks);
+  }
+
+  public void decryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks) {
+    if (stepByStep)
+      BlockCipherEngine.super.decryptBlocks(in, inOff, out, outOff, blocks);
+    else
+      decrypter.decryptBlocks(in, inOff, out, outOff, blocks);
+  }
+}
@@ -0,0 +1,60 @@
+/**
+ * RoundTracer - receives the state matrix after each step of AES encryption or
+ * decryption. AESEncrypter and AESDecrypter call it after every SubBytes,
+ * ShiftRows, MixColumns and AddRoundKey (and their inverses).
+ *
+ * Use PrintingRoundTracer to print the step-by-step walkthrough, or NONE to
+ * skip tracing entirely. NONE does nothing, so when it is the only tracer in use
+ * the JIT inlines each call away and untraced runs pay nothing for it.
+ *
+ * @see PrintingRoundTracer
+ * @see AESEncrypter
+ * @see AESDecrypter
+ * @author Seb Kryspin
+ * @version 1.0
+ */
+public interface RoundTracer {
+
+  /**
+   * A tracer that ignores every step.
+   */
+  RoundTracer NONE = new RoundTracer() {
+    public void step(String step, int round, short[][] state) {}
+  };
+
+  /**
+   * Called after a step has been applied to the state matrix.
+   *
+   * The state matrix is the cipher's working state, so implementations must
+   * not modify it or keep a reference to it.
+   *
+   * @param step the name of the step that was just applied, e.g. "SubBytes"
+   * @param round the round number (0 to 10)
+   * @param state the 4x4 state matrix after the step
+   */
+  void step(String step, int round, short[][] state);
+
+  /**
+   * Called by AESDecrypter after a step of decryption has been applied. The
+   * decryption walkthrough has always worded its headings its own way
+   * ("Inverting ShiftRows from round 9", "AddRoundKey initial round "), so the
+   * heading to print comes with the step. By default this is passed on to
+   * step, without the heading.
+   *
+   * @param step the name of the step that was just applied, e.g. "InvShiftRows"
+   * @param round the round number (0 to 10)
+   * @param heading the line the decryption walkthrough prints for this step
+   * @param state the 4x4 state matrix after the step
+   */
+  default void inverseStep(String step, int round, String heading, short[][] state) {
+    step(step, round, state);
+  }
+
+  /**
+   * Called for a line of the walkthrough that goes with no state, such as the
+   * note that the final round has no MixColumns. Does nothing by default.
+   *
+   * @param note the line of text
+   */
+  default void note(String note) {}
+}
@@ -0,0 +1,237 @@
+/**
+ * TTableDecrypter performs the same AES-128 decryption as AESDecrypter, but it
+ * is built for speed rather than for demonstration.
+ *
+ * It uses the equivalent inverse cipher from FIPS-197 (section 5.3.5): the round
+ * keys for rounds 1 to 9 have InvMixColumns applied to them once, when the
+ * decrypter is created. Every round can then merge InvSubBytes, InvShiftRows and
+ * InvMixColumns into lookups in four precomputed tables, exactly as
+ * TTableEncrypter does for encryption. Nothing is printed, and nothing but the
+ * round keys is kept between calls, so one instance can be shared between threads.
+ *
+ * @see AESDecrypter
+ * @see TTableEncrypter
+ * @author Seb Kryspin
+ * @version 1.0
+ */
+public class TTableDecrypter {
+  private final int[] roundKeys; //the decryption round keys, in the order they are used
+
+  //the tables live in GaloisField; these aliases just keep the round code short
+  private static final int[] TD0 = GaloisField.TD0;
+  private static final int[] TD1 = GaloisField.TD1;
+  private static final int[] TD2 = GaloisField.TD2;
+  private static final int[] TD3 = GaloisField.TD3;
+  private static final int[] INV_SBOX = GaloisField.INV_SBOX;
+
+  /**
+   * Creates a T-table decrypter from an expanded key.
+   *
+   * @param expand the expanded key to decrypt with
+   */
+  public TTableDecrypter(KeyExpander expand) {
+    roundKeys = invertRoundKeys(expand.getRoundKeyWords());
+  }
+
+  /**
+   * Creates a T-table decrypter from a key schedule, reusing its decryption
+   * round keys if they have already been derived.
+   *
+   * @param schedule the key schedule to decrypt with
+   */
+  public TTableDecrypter(KeySchedule schedule) {
+    roundKeys = schedule.getInverseRoundKeyWords();
+  }
+
+  /**
+   * Derives the decryption round keys for the equivalent inverse cipher from
+   * the encryption round keys: the rounds are reversed, and InvMixColumns is
+   * applied to the keys of rounds 1 to 9.
+   *
+   * @param rk the 44 encryption round key columns
+   * @return a new array of the 44 decryption round key columns
+   */
+  static int[] invertRoundKeys(int[] rk) {
+    int[] dk = new int[44];
+    for (int round = 0; round < 11; round++) { //decryption uses the keys in reverse order
+      for (int column = 0; column < 4; column++) {
+        int w = rk[(10 - round)*4 + column];
+        if (round != 0 && round != 10)
+          w = invMixColumn(w);
+        dk[round*4 + column] = w;
+      }
+    }
+    return dk;
+  }
+
+  /**
+   * Creates a T-table decrypter for the given key.
+   *
+   * @param k the key to decrypt with
+   */
+  public TTableDecrypter(Key k) {
+    this(new KeyExpander(k));
+  }
+
+  /**
+   * Decrypts a 4x4 short array of bytes, in the same layout AESDecrypter uses.
+   *
+   * @param ciphertext a 4x4 array of bytes, but the bytes are cast as shorts
+   * @return a new 4x4 short array containing the plaintext
+   */
+  public short[][] Decrypt(short[][] ciphertext) {
+    byte[] block = new byte[16];
+    for (int column = 0; column < 4; column++)
+      for (int row = 0; row < 4; row++)
+        block[column*4 + row] = (byte) ciphertext[row][column];
+    decryptBlock(block, 0, block, 0);
+    short[][] plaintext = new short[4][4];
+    for (int column = 0; column < 4; column++)
+      for (int row = 0; row < 4; row++)
+        plaintext[row][column] = (short) (block[column*4 + row] & 0xff);
+    return plaintext;
+  }
+
+  /**
+   * Decrypts one 16-byte block. The bytes are in column-major order, the same
+   * order the tools read and write them in: in[inOff + 4*column + row].
+   *
+   * Nothing is allocated, and in and out may overlap exactly.
+   *
+   * @param in the array holding the ciphertext
+   * @param inOff the offset of the ciphertext block in in
+   * @param out the array that receives the plaintext
+   * @param outOff the offset in out at which to write the plaintext block
+   */
+  public void decryptBlock(byte[] in, int inOff, byte[] out, int outOff) {
+    int[] dk = roundKeys;
+    int s0 = TTableEncrypter.getColumn(in, inOff) ^ dk[0];
+    int s1 = TTableEncrypter.getColumn(in, inOff + 4) ^ dk[1];
+    int s2 = TTableEncrypter.getColumn(in, inOff + 8) ^ dk[2];
+    int s3 = TTableEncrypter.getColumn(in, inOff + 12) ^ dk[3];
+    int k = 4;
+    for (int round = 1; round < 10; round++) { //9 normal rounds
+      int t0 = TD0[s0 >>> 24] ^ TD1[(s3 >>> 16) & 0xff] ^ TD2[(s2 >>> 8) & 0xff] ^ TD3[s1 & 0xff] ^ dk[k];
+      int t1 = TD0[s1 >>> 24] ^ TD1[(s0 >>> 16) & 0xff] ^ TD2[(s3 >>> 8) & 0xff] ^ TD3[s2 & 0xff] ^ dk[k+1];
+      int t2 = TD0[s2 >>> 24] ^ TD1[(s1 >>> 16) & 0xff] ^ TD2[(s0 >>> 8) & 0xff] ^ TD3[s3 & 0xff] ^ dk[k+2];
+      int t3 = TD0[s3 >>> 24] ^ TD1[(s2 >>> 16) & 0xff] ^ TD2[(s1 >>> 8) & 0xff] ^ TD3[s0 & 0xff] ^ dk[k+3];
+      s0 = t0; s1 = t1; s2 = t2; s3 = t3;
+      k += 4;
+    }
+    //final round has no InvMixColumns, so we use the plain inverse S-box
+    TTableEncrypter.putColumn(finalColumn(s0, s3, s2, s1) ^ dk[40], out, outOff);
+    TTableEncrypter.putColumn(finalColumn(s1, s0, s3, s2) ^ dk[41], out, outOff + 4);
+    TTableEncrypter.putColumn(finalColumn(s2, s1, s0, s3) ^ dk[42], out, outOff + 8);
+    TTableEncrypter.putColumn(finalColumn(s3, s2, s1, s0) ^ dk[43], out, outOff + 12);
+  }
+
+  /**
+   * Decrypts a run of independent 16-byte blocks, e.g. for CBC decryption or counter modes.
+   *
+   * Four blocks are processed together, one round at a time, so the table
+   * lookups of one block can overlap with those of the others instead of each
+   * block waiting on its own previous round. Any leftover blocks are done one
+   * at a time. Nothing is allocated, and in and out may be the same region.
+   *
+   * @param in the array holding the ciphertext
+   * @param inOff the offset of the first ciphertext block in in
+   * @param out the array that receives the plaintext
+   * @param outOff the offset in out at which to write the first plaintext block
+   * @param blocks the number of blocks to process
+   */
+  public void decryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks) {
+    int[] dk = roundKeys;
+    for (; blocks >= 4; blocks -= 4) {
+      int a0 = TTableEncrypter.getColumn(in, inOff) ^ dk[0];
+      int a1 = TTableEncrypter.getColumn(in, inOff + 4) ^ dk[1];
+      int a2 = TTableEncrypter.getColumn(in, inOff + 8) ^ dk[2];
+      int a3 = TTableEncrypter.getColumn(in, inOff + 12) ^ dk[3];
+      int b0 = TTableEncrypter.getColumn(in, inOff + 16) ^ dk[0];
+      int b1 = TTableEncrypter.getColumn(in, inOff + 20) ^ dk[1];
+      int b2 = TTableEncrypter.getColumn(in, inOff + 24) ^ dk[2];
+      int b3 = TTableEncrypter.getColumn(in, inOff + 28) ^ dk[3];
+      int c0 = TTableEncrypter.getColumn(in, inOff + 32) ^ dk[0];
+      int c1 = TTableEncrypter.getColumn(in, inOff + 36) ^ dk[1];
+      int c2 = TTableEncrypter.getColumn(in, inOff + 40) ^ dk[2];
+      int c3 = TTableEncrypter.getColumn(in, inOff + 44) ^ dk[3];
+      int d0 = TTableEncrypter.getColumn(in, inOff + 48) ^ dk[0];
+      int d1 = TTableEncrypter.getColumn(in, inOff + 52) ^ dk[1];
+      int d2 = TTableEncrypter.getColumn(in, inOff + 56) ^ dk[2];
+      int d3 = TTableEncrypter.getColumn(in, inOff + 60) ^ dk[3];
+      int k = 4;
+      for (int round = 1; round < 10; round++) { //9 normal rounds, one step of each block at a time
+        int at0 = TD0[a0 >>> 24] ^ TD1[(a3 >>> 16) & 0xff] ^ TD2[(a2 >>> 8) & 0xff] ^ TD3[a1 & 0xff] ^ dk[k];
+        int at1 = TD0[a1 >>> 24] ^ TD1[(a0 >>> 16) & 0xff] ^ TD2[(a3 >>> 8) & 0xff] ^ TD3[a2 & 0xff] ^ dk[k+1];
+        int at2 = TD0[a2 >>> 24] ^ TD1[(a1 >>> 16) & 0xff] ^ TD2[(a0 >>> 8) & 0xff] ^ TD3[a3 & 0xff] ^ dk[k+2];
+        int at3 = TD0[a3 >>> 24] ^ TD1[(a2 >>> 16) & 0xff] ^ TD2[(a1 >>> 8) & 0xff] ^ TD3[a0 & 0xff] ^ dk[k+3];
+        int bt0 = TD0[b0 >>> 24] ^ TD1[(b3 >>> 16) & 0xff] ^ TD2[(b2 >>> 8) & 0xff] ^ TD3[b1 & 0xff] ^ dk[k];
+        int bt1 = TD0[b1 >>> 24] ^ TD1[(b0 >>> 16) & 0xff] ^ TD2[(b3 >>> 8) & 0xff] ^ TD3[b2 & 0xff] ^ dk[k+1];
+        int bt2 = TD0[b2 >>> 24] ^ TD1[(b1 >>> 16) & 0xff] ^ TD2[(b0 >>> 8) & 0xff] ^ TD3[b3 & 0xff] ^ dk[k+2];
+        int bt3 = TD0[b3 >>> 24] ^ TD1[(b2 >>> 16) & 0xff] ^ TD2[(b1 >>> 8) & 0xff] ^ TD3[b0 & 0xff] ^ dk[k+3];
+        int ct0 = TD0[c0 >>> 24] ^ TD1[(c3 >>> 16) & 0xff] ^ TD2[(c2 >>> 8) & 0xff] ^ TD3[c1 & 0xff] ^ dk[k];
+        int ct1 = TD0[c1 >>> 24] ^ TD1[(c0 >>> 16) & 0xff] ^ TD2[(c3 >>> 8) & 0xff] ^ TD3[c2 & 0xff] ^ dk[k+1];
+        int ct2 = TD0[c2 >>> 24] ^ TD1[(c1 >>> 16) & 0xff] ^ TD2[(c0 >>> 8) & 0xff] ^ TD3[c3 & 0xff] ^ dk[k+2];
+        int ct3 = TD0[c3 >>> 24] ^ TD1[(c2 >>> 16) & 0xff] ^ TD2[(c1 >>> 8) & 0xff] ^ TD3[c0 & 0xff] ^ dk[k+3];
+        int dt0 = TD0[d0 >>> 24] ^ TD1[(d3 >>> 16) & 0xff] ^ TD2[(d2 >>> 8) & 0xff] ^ TD3[d1 & 0xff] ^ dk[k];
+        int dt1 = TD0[d1 >>> 24] ^ TD1[(d0 >>> 16) & 0xff] ^ TD2[(d3 >>> 8) & 0xff] ^ TD3[d2 & 0xff] ^ dk[k+1];
+        int dt2 = TD0[d2 >>> 24] ^ TD1[(d1 >>> 16) & 0xff] ^ TD2[(d0 >>> 8) & 0xff] ^ TD3[d3 & 0xff] ^ dk[k+2];
+        int dt3 = TD0[d3 >>> 24] ^ TD1[(d2 >>> 16) & 0xff] ^ TD2[(d1 >>> 8) & 0xff] ^ TD3[d0 & 0xff] ^ dk[k+3];
+        a0 = at0; a1 = at1; a2 = at2; a3 = at3;
+        b0 = bt0; b1 = bt1; b2 = bt2; b3 = bt3;
+        c0 = ct0; c1 = ct1; c2 = ct2; c3 = ct3;
+        d0 = dt0; d1 = dt1; d2 = dt2; d3 = dt3;
+        k += 4;
+      }
+      TTableEncrypter.putColumn(finalColumn(a0, a3, a2, a1) ^ dk[40], out, outOff);
+      TTableEncrypter.putColumn(finalColumn(a1, a0, a3, a2) ^ dk[41], out, outOff + 4);
+      TTableEncrypter.putColumn(finalColumn(a2, a1, a0, a3) ^ dk[42], out, outOff + 8);
+      TTableEncrypter.putColumn(finalColumn(a3, a2, a1, a0) ^ dk[43], out, outOff + 12);
+      TTableEncrypter.putColumn(finalColumn(b0, b3, b2, b1) ^ dk[40], out, outOff + 16);
+      TTableEncrypter.putColumn(finalColumn(b1, b0, b3, b2) ^ dk[41], out, outOff + 20);
+      TTableEncrypter.putColumn(finalColumn(b2, b1, b0, b3) ^ dk[42], out, outOff + 24);
+      TTableEncrypter.putColumn(finalColumn(b3, b2, b1, b0) ^ dk[43], out, outOff + 28);
+      TTableEncrypter.putColumn(finalColumn(c0, c3, c2, c1) ^ dk[40], out, outOff + 32);
+      TTableEncrypter.putColumn(finalColumn(c1, c0, c3, c2) ^ dk[41], out, outOff + 36);
+      TTableEncrypter.putColumn(finalColumn(c2, c1, c0, c3) ^ dk[42], out, outOff + 40);
+      TTableEncrypter.putColumn(finalColumn(c3, c2, c1, c0) ^ dk[43], out, outOff + 44);
+      TTableEncrypter.putColumn(finalColumn(d0, d3, d2, d1) ^ dk[40], out, outOff + 48);
+      TTableEncrypter.putColumn(finalColumn(d1, d0, d3, d2) ^ dk[41], out, outOff + 52);
+      TTableEncrypter.putColumn(finalColumn(d2, d1, d0, d3) ^ dk[42], out, outOff + 56);
+      TTableEncrypter.putColumn(finalColumn(d3, d2, d1, d0) ^ dk[43], out, outOff + 60);
+      inOff += 64;
+      outOff += 64;
+    }
+    for (; blocks > 0; blocks--) {
+      decryptBlock(in, inOff, out, outOff);
+      inOff += 16;
+      outOff += 16;
+    }
+  }
+
+  /**
+   * Applies InvShiftRows and InvSubBytes (but not InvMixColumns) to produce one output column.
+   *
+   * @param a the column supplying row 0
+   * @param b the column supplying row 1
+   * @param c the column supplying row 2
+   * @param d the column supplying row 3
+   * @return the substituted and shifted column
+   */
+  private static int finalColumn(int a, int b, int c, int d) {
+    return (INV_SBOX[a >>> 24] << 24) | (INV_SBOX[(b >>> 16) & 0xff] << 16) | (INV_SBOX[(c >>> 8) & 0xff] << 8) | INV_SBOX[d & 0xff];
+  }
+
+  /**
+   * Applies InvMixColumns to a single packed column.
+   *
+   * TD0[SBOX[x]] is InvMixColumns applied to x alone, so the S-box and the
+   * decryption tables cancel out.
+   *
+   * @param w the packed column
+   * @return the column after InvMixColumns
+   */
+  static int invMixColumn(int w) {
+    int[] s = GaloisField.SBOX;
+    return TD0[s[w >>> 24]] ^ TD1[s[(w >>> 16) & 0xff]] ^ TD2[s[(w >>> 8) & 0xff]] ^ TD3[s[w & 0xff]];
+  }
+}
@@ -0,0 +1,225 @@
+/**
+ * TTableEncrypter performs the same AES-128 encryption as AESEncrypter, but it
+ * is built for speed rather than for demonstration.
+ *
+ * The state is packed into four int columns (row 0 in the high byte), and
+ * SubBytes, ShiftRows and MixColumns are merged into lookups in four
+ * precomputed 256-entry tables (T-tables, see GaloisField). A normal round is then 16 table
+ * lookups and 16 XORs. Nothing is printed, and nothing but the round keys is
+ * kept between calls, so one instance can be shared between threads.
+ *
+ * @see AESEncrypter
+ * @see KeyExpander
+ * @author Seb Kryspin
+ * @version 1.0
+ */
+public class TTableEncrypter {
+  private final int[] roundKeys; //the 44 round key columns, shared with the KeyExpander
+
+  //the tables live in GaloisField; these aliases just keep the round code short
+  private static final int[] TE0 = GaloisField.TE0;
+  private static final int[] TE1 = GaloisField.TE1;
+  private static final int[] TE2 = GaloisField.TE2;
+  private static final int[] TE3 = GaloisField.TE3;
+  private static final int[] SBOX = GaloisField.SBOX;
+
+  /**
+   * Creates a T-table encrypter from an expanded key.
+   *
+   * @param expand the expanded key to encrypt with
+   */
+  public TTableEncrypter(KeyExpander expand) {
+    roundKeys = expand.getRoundKeyWords(); //already packed the way we need them, so no copy is made
+  }
+
+  /**
+   * Creates a T-table encrypter from a key schedule.
+   *
+   * @param schedule the key schedule to encrypt with
+   */
+  public TTableEncrypter(KeySchedule schedule) {
+    this(schedule.getExpander());
+  }
+
+  /**
+   * Creates a T-table encrypter for the given key.
+   *
+   * @param k the key to encrypt with
+   */
+  public TTableEncrypter(Key k) {
+    this(new KeyExpander(k));
+  }
+
+  /**
+   * Encrypts a 4x4 short array of bytes, in the same layout AESEncrypter uses.
+   *
+   * @param plaintext a 4x4 array of bytes, but the bytes are cast as shorts
+   * @return a new 4x4 short array containing the ciphertext
+   */
+  public short[][] Encrypt(short[][] plaintext) {
+    byte[] block = new byte[16];
+    for (int column = 0; column < 4; column++)
+      for (int row = 0; row < 4; row++)
+        block[column*4 + row] = (byte) plaintext[row][column];
+    encryptBlock(block, 0, block, 0);
+    short[][] ciphertext = new short[4][4];
+    for (int column = 0; column < 4; column++)
+      for (int row = 0; row < 4; row++)
+        ciphertext[row][column] = (short) (block[column*4 + row] & 0xff);
+    return ciphertext;
+  }
+
+  /**
+   * Encrypts one 16-byte block. The bytes are in column-major order, the same
+   * order the tools read and write them in: in[inOff + 4*column + row].
+   *
+   * Nothing is allocated, and in and out may overlap exactly.
+   *
+   * @param in the array holding the plaintext
+   * @param inOff the offset of the plaintext block in in
+   * @param out the array that receives the ciphertext
+   * @param outOff the offset in out at which to write the ciphertext block
+   */
+  public void encryptBlock(byte[] in, int inOff, byte[] out, int outOff) {
+    int[] rk = roundKeys;
+    int s0 = getColumn(in, inOff) ^ rk[0];
+    int s1 = getColumn(in, inOff + 4) ^ rk[1];
+    int s2 = getColumn(in, inOff + 8) ^ rk[2];
+    int s3 = getColumn(in, inOff + 12) ^ rk[3];
+    int k = 4;
+    for (int round = 1; round < 10; round++) { //9 normal rounds
+      int t0 = TE0[s0 >>> 24] ^ TE1[(s1 >>> 16) & 0xff] ^ TE2[(s2 >>> 8) & 0xff] ^ TE3[s3 & 0xff] ^ rk[k];
+      int t1 = TE0[s1 >>> 24] ^ TE1[(s2 >>> 16) & 0xff] ^ TE2[(s3 >>> 8) & 0xff] ^ TE3[s0 & 0xff] ^ rk[k+1];
+      int t2 = TE0[s2 >>> 24] ^ TE1[(s3 >>> 16) & 0xff] ^ TE2[(s0 >>> 8) & 0xff] ^ TE3[s1 & 0xff] ^ rk[k+2];
+      int t3 = TE0[s3 >>> 24] ^ TE1[(s0 >>> 16) & 0xff] ^ TE2[(s1 >>> 8) & 0xff] ^ TE3[s2 & 0xff] ^ rk[k+3];
+      s0 = t0; s1 = t1; s2 = t2; s3 = t3;
+      k += 4;
+    }
+    //final round has no MixColumns, so we use the plain S-box
+    putColumn(finalColumn(s0, s1, s2, s3) ^ rk[40], out, outOff);
+    putColumn(finalColumn(s1, s2, s3, s0) ^ rk[41], out, outOff + 4);
+    putColumn(finalColumn(s2, s3, s0, s1) ^ rk[42], out, outOff + 8);
+    putColumn(finalColumn(s3, s0, s1, s2) ^ rk[43], out, outOff + 12);
+  }
+
+  /**
+   * Encrypts a run of independent 16-byte blocks, e.g. for CBC decryption or counter modes.
+   *
+   * Four blocks are processed together, one round at a time, so the table
+   * lookups of one block can overlap with those of the others instead of each
+   * block waiting on its own previous round. Any leftover blocks are done one
+   * at a time. Nothing is allocated, and in and out may be the same region.
+   *
+   * @param in the array holding the plaintext
+   * @param inOff the offset of the first plaintext block in in
+   * @param out the array that receives the ciphertext
+   * @param outOff the offset in out at which to write the first ciphertext block
+   * @param blocks the number of blocks to process
+   */
+  public void encryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks) {
+    int[] rk = roundKeys;
+    for (; blocks >= 4; blocks -= 4) {
+      int a0 = getColumn(in, inOff) ^ rk[0];
+      int a1 = getColumn(in, inOff + 4) ^ rk[1];
+      int a2 = getColumn(in, inOff + 8) ^ rk[2];
+      int a3 = getColumn(in, inOff + 12) ^ rk[3];
+      int b0 = getColumn(in, inOff + 16) ^ rk[0];
+      int b1 = getColumn(in, inOff + 20) ^ rk[1];
+      int b2 = getColumn(in, inOff + 24) ^ rk[2];
+      int b3 = getColumn(in, inOff + 28) ^ rk[3];
+      int c0 = getColumn(in, inOff + 32) ^ rk[0];
+      int c1 = getColumn(in, inOff + 36) ^ rk[1];
+      int c2 = getColumn(in, inOff + 40) ^ rk[2];
+      int c3 = getColumn(in, inOff + 44) ^ rk[3];
+      int d0 = getColumn(in, inOff + 48) ^ rk[0];
+      int d1 = getColumn(in, inOff + 52) ^ rk[1];
+      int d2 = getColumn(in, inOff + 56) ^ rk[2];
+      int d3 = getColumn(in, inOff + 60) ^ rk[3];
+      int k = 4;
+      for (int round = 1; round < 10; round++) { //9 normal rounds, one step of each block at a time
+        int at0 = TE0[a0 >>> 24] ^ TE1[(a1 >>> 16) & 0xff] ^ TE2[(a2 >>> 8) & 0xff] ^ TE3[a3 & 0xff] ^ rk[k];
+        int at1 = TE0[a1 >>> 24] ^ TE1[(a2 >>> 16) & 0xff] ^ TE2[(a3 >>> 8) & 0xff] ^ TE3[a0 & 0xff] ^ rk[k+1];
+        int at2 = TE0[a2 >>> 24] ^ TE1[(a3 >>> 16) & 0xff] ^ TE2[(a0 >>> 8) & 0xff] ^ TE3[a1 & 0xff] ^ rk[k+2];
+        int at3 = TE0[a3 >>> 24] ^ TE1[(a0 >>> 16) & 0xff] ^ TE2[(a1 >>> 8) & 0xff] ^ TE3[a2 & 0xff] ^ rk[k+3];
+        int bt0 = TE0[b0 >>> 24] ^ TE1[(b1 >>> 16) & 0xff] ^ TE2[(b2 >>> 8) & 0xff] ^ TE3[b3 & 0xff] ^ rk[k];
+        int bt1 = TE0[b1 >>> 24] ^ TE1[(b2 >>> 16) & 0xff] ^ TE2[(b3 >>> 8) & 0xff] ^ TE3[b0 & 0xff] ^ rk[k+1];
+        int bt2 = TE0[b2 >>> 24] ^ TE1[(b3 >>> 16) & 0xff] ^ TE2[(b0 >>> 8) & 0xff] ^ TE3[b1 & 0xff] ^ rk[k+2];
+        int bt3 = TE0[b3 >>> 24] ^ TE1[(b0 >>> 16) & 0xff] ^ TE2[(b1 >>> 8) & 0xff] ^ TE3[b2 & 0xff] ^ rk[k+3];
+        int ct0 = TE0[c0 >>> 24] ^ TE1[(c1 >>> 16) & 0xff] ^ TE2[(c2 >>> 8) & 0xff] ^ TE3[c3 & 0xff] ^ rk[k];
+        int ct1 = TE0[c1 >>> 24] ^ TE1[(c2 >>> 16) & 0xff] ^ TE2[(c3 >>> 8) & 0xff] ^ TE3[c0 & 0xff] ^ rk[k+1];
+        int ct2 = TE0[c2 >>> 24] ^ TE1[(c3 >>> 16) & 0xff] ^ TE2[(c0 >>> 8) & 0xff] ^ TE3[c1 & 0xff] ^ rk[k+2];
+        int ct3 = TE0[c3 >>> 24] ^ TE1[(c0 >>> 16) & 0xff] ^ TE2[(c1 >>> 8) & 0xff] ^ TE3[c2 & 0xff] ^ rk[k+3];
+        int dt0 = TE0[d0 >>> 24] ^ TE1[(d1 >>> 16) & 0xff] ^ TE2[(d2 >>> 8) & 0xff] ^ TE3[d3 & 0xff] ^ rk[k];
+        int dt1 = TE0[d1 >>> 24] ^ TE1[(d2 >>> 16) & 0xff] ^ TE2[(d3 >>> 8) & 0xff] ^ TE3[d0 & 0xff] ^ rk[k+1];
+        int dt2 = TE0[d2 >>> 24] ^ TE1[(d3 >>> 16) & 0xff] ^ TE2[(d0 >>> 8) & 0xff] ^ TE3[d1 & 0xff] ^ rk[k+2];
+        int dt3 = TE0[d3 >>> 24] ^ TE1[(d0 >>> 16) & 0xff] ^ TE2[(d1 >>> 8) & 0xff] ^ TE3[d2 & 0xff] ^ rk[k+3];
+        a0 = at0; a1 = at1; a2 = at2; a3 = at3;
+        b0 = bt0; b1 = bt1; b2 = bt2; b3 = bt3;
+        c0 = ct0; c1 = ct1; c2 = ct2; c3 = ct3;
+        d0 = dt0; d1 = dt1; d2 = dt2; d3 = dt3;
+        k += 4;
+      }
+      putColumn(finalColumn(a0, a1, a2, a3) ^ rk[40], out, outOff);
+      putColumn(finalColumn(a1, a2, a3, a0) ^ rk[41], out, outOff + 4);
+      putColumn(finalColumn(a2, a3, a0, a1) ^ rk[42], out, outOff + 8);
+      putColumn(finalColumn(a3, a0, a1, a2) ^ rk[43], out, outOff + 12);
+      putColumn(finalColumn(b0, b1, b2, b3) ^ rk[40], out, outOff + 16);
+      putColumn(finalColumn(b1, b2, b3, b0) ^ rk[41], out, outOff + 20);
+      putColumn(finalColumn(b2, b3, b0, b1) ^ rk[42], out, outOff + 24);
+      putColumn(finalColumn(b3, b0, b1, b2) ^ rk[43], out, outOff + 28);
+      putColumn(finalColumn(c0, c1, c2, c3) ^ rk[40], out, outOff + 32);
+      putColumn(finalColumn(c1, c2, c3, c0) ^ rk[41], out, outOff + 36);
+      putColumn(finalColumn(c2, c3, c0, c1) ^ rk[42], out, outOff + 40);
+      putColumn(finalColumn(c3, c0, c1, c2) ^ rk[43], out, outOff + 44);
+      putColumn(finalColumn(d0, d1, d2, d3) ^ rk[40], out, outOff + 48);
+      putColumn(finalColumn(d1, d2, d3, d0) ^ rk[41], out, outOff + 52);
+      putColumn(finalColumn(d2, d3, d0, d1) ^ rk[42], out, outOff + 56);
+      putColumn(finalColumn(d3, d0, d1, d2) ^ rk[43], out, outOff + 60);
+      inOff += 64;
+      outOff += 64;
+    }
+    for (; blocks > 0; blocks--) {
+      encryptBlock(in, inOff, out, outOff);
+      inOff += 16;
+      outOff += 16;
+    }
+  }
+
+  /**
+   * Applies SubBytes and ShiftRows (but not MixColumns) to produce one output column.
+   *
+   * @param a the column supplying row 0
+   * @param b the column supplying row 1
+   * @param c the column supplying row 2
+   * @param d the column supplying row 3
+   * @return the substituted and shifted column
+   */
+  private static int finalColumn(int a, int b, int c, int d) {
+    return (SBOX[a >>> 24] << 24) | (SBOX[(b >>> 16) & 0xff] << 16) | (SBOX[(c >>> 8) & 0xff] << 8) | SBOX[d & 0xff];
+  }
+
+  /**
+   * Reads four bytes as a packed column, with the first byte (row 0) in the high byte.
+   *
+   * @param b the array to read from
+   * @param off the offset of the column
+   * @return the packed column
+   */
+  static int getColumn(byte[] b, int off) {
+    return (b[off] << 24) | ((b[off+1] & 0xff) << 16) | ((b[off+2] & 0xff) << 8) | (b[off+3] & 0xff);
+  }
+
+  /**
+   * Writes a packed column as four bytes, row 0 first.
+   *
+   * @param w the packed column
+   * @param b the array to write to
+   * @param off the offset at which to write the column
+   */
+  static void putColumn(int w, byte[] b, int off) {
+    b[off] = (byte) (w >>> 24);
+    b[off+1] = (byte) (w >>> 16);
+    b[off+2] = (byte) (w >>> 8);
+    b[off+3] = (byte) w;
+  }
+}
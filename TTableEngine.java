@@ -0,0 +1,47 @@
+/**
+ * TTableEngine - a BlockCipherEngine backed by TTableEncrypter and
+ * TTableDecrypter, the fastest of this project's scalar engines.
+ *
+ * It is what the "vector" engine falls back to when VectorEngine was not
+ * compiled, or was run without the jdk.incubator.vector module.
+ *
+ * @see BlockCipherEngine
+ * @see TTableEncrypter
+ * @see TTableDecrypter
+ * @author Seb Kryspin
+ * @version 1.0
+ */
+public class TTableEngine implements BlockCipherEngine {
+  private final TTableEncrypter encrypter;
+  private final TTableDecrypter decrypter;
+
+  /**
+   * Creates a T-table engine for an expanded key.
+   *
+   * @param schedule the key schedule to use
+   */
+  public TTableEngine(KeySchedule schedule) {
+    encrypter = new TTableEncrypter(schedule);
+    decrypter = new TTableDecrypter(schedule);
+  }
+
+  public String getName() {
+    return "t-table";
+  }
+
+  public void encryptBlock(byte[] in, int inOff, byte[] out, int outOff) {
+    encrypter.encryptBlock(in, inOff, out, outOff);
+  }
+
+  public void decryptBlock(byte[] in, int inOff, byte[] out, int outOff) {
+    decrypter.decryptBlock(in, inOff, out, outOff);
+  }
+
+  public void encryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks) {
+    encrypter.encryptBlocks(in, inOff, out, outOff, blocks);
+  }
+
+  public void decryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks) {
+    decrypter.decryptBlocks(in, inOff, out, outOff, blocks);
+  }
+}
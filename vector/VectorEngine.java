@@ -0,0 +1,227 @@
+import java.util.Arrays;
+import java.util.Random;
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * VectorEngine - a BlockCipherEngine that puts several independent blocks side
+ * by side in one SIMD register with the jdk.incubator.vector API, e.g. four
+ * blocks in a 512-bit AVX-512 register or two in a 256-bit AVX2 register.
+ *
+ * Each byte lane holds one byte of one block, in the usual column-major order,
+ * so every step of a round is a whole-register operation:
+ * - SubBytes looks every lane up in the S-box at once. The S-box is split into
+ *   register-sized pieces, each piece is indexed with a lane shuffle
+ *   (selectFrom), and the piece selected by each byte's top bits is blended in.
+ * - ShiftRows, and the column rotations MixColumns needs, are fixed lane
+ *   shuffles that never move a byte out of its own block.
+ * - MixColumns is a lane-wise xtime, and AddRoundKey XORs a register holding
+ *   the round key once per block.
+ *
+ * Runs shorter than one register of blocks go to the T-table engine. So does
+ * every block when the preferred register holds fewer than MIN_BLOCKS_PER_VECTOR
+ * blocks: with 256-bit AVX2 registers the S-box takes eight shuffles per
+ * lookup, and the engine ran at about 130 MB/s against the T-tables' 155 MB/s.
+ * With 512-bit AVX-512 registers it encrypted at about 350-400 MB/s against
+ * 200 MB/s, and decrypted at about the T-tables' speed, since InvMixColumns
+ * takes two more xtimes than MixColumns.
+ *
+ * This file is kept apart from the others because it needs the incubator
+ * module to compile and run:
+ *
+ *   javac --add-modules jdk.incubator.vector -d . vector/VectorEngine.java
+ *   java --add-modules jdk.incubator.vector VectorEngine
+ *
+ * BlockCipherEngines loads it by name, so nothing else depends on it.
+ *
+ * @see BlockCipherEngine
+ * @see TTableEngine
+ * @author Seb Kryspin
+ * @version 1.0
+ */
+public class VectorEngine implements BlockCipherEngine {
+  private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+  private static final int LANES = SPECIES.length(); //bytes per register
+
+  /** Registers holding fewer blocks than this are slower than the T-tables, so they are not used. */
+  public static final int MIN_BLOCKS_PER_VECTOR = 4;
+
+  /** The number of blocks in one register, or 0 if every block goes to the T-tables. */
+  public static final int BLOCKS_PER_VECTOR = LANES / 16 >= MIN_BLOCKS_PER_VECTOR ? LANES / 16 : 0;
+
+  private static final ByteVector[] SBOX = pieces(GaloisField.SBOX);
+  private static final ByteVector[] INV_SBOX = pieces(GaloisField.INV_SBOX);
+  private static final int PIECE_SHIFT = Integer.numberOfTrailingZeros(LANES); //a byte's piece is its value >>> PIECE_SHIFT
+
+  //lane i of the result is taken from lane shuffle[i]; each stays inside its own block
+  private static final VectorShuffle<Byte> SHIFT_ROWS = VectorShuffle.fromOp(SPECIES, i -> (i & ~15) + 4*(((i >> 2) + (i & 3)) & 3) + (i & 3));
+  private static final VectorShuffle<Byte> INV_SHIFT_ROWS = VectorShuffle.fromOp(SPECIES, i -> (i & ~15) + 4*(((i >> 2) - (i & 3)) & 3) + (i & 3));
+  private static final VectorShuffle<Byte> ROTATE1 = VectorShuffle.fromOp(SPECIES, i -> (i & ~3) + ((i + 1) & 3)); //row r gets row r+1 of its column
+  private static final VectorShuffle<Byte> ROTATE2 = VectorShuffle.fromOp(SPECIES, i -> (i & ~3) + ((i + 2) & 3));
+
+  private final ByteVector[] roundKeys = new ByteVector[11]; //each round key repeated once per block
+  private final TTableEngine scalar; //for short runs and narrow registers
+
+  /**
+   * Creates a vector engine for an expanded key.
+   *
+   * @param schedule the key schedule to use
+   */
+  public VectorEngine(KeySchedule schedule) {
+    int[] words = schedule.getExpander().getRoundKeyWords();
+    byte[] lanes = new byte[LANES];
+    for (int round = 0; round <= 10; round++) {
+      for (int i = 0; i < LANES; i++)
+        lanes[i] = (byte) (words[round*4 + ((i >> 2) & 3)] >>> (24 - 8*(i & 3))); //row 0 is the high byte of each word
+      roundKeys[round] = ByteVector.fromArray(SPECIES, lanes, 0);
+    }
+    scalar = new TTableEngine(schedule);
+  }
+
+  /**
+   * Creates a vector engine for a key.
+   *
+   * @param k the key to use
+   */
+  public VectorEngine(Key k) {
+    this(KeyScheduleCache.shared().get(k));
+  }
+
+  public String getName() {
+    return BLOCKS_PER_VECTOR > 0 ? "vector" : scalar.getName();
+  }
+
+  public void encryptBlock(byte[] in, int inOff, byte[] out, int outOff) {
+    scalar.encryptBlock(in, inOff, out, outOff);
+  }
+
+  public void decryptBlock(byte[] in, int inOff, byte[] out, int outOff) {
+    scalar.decryptBlock(in, inOff, out, outOff);
+  }
+
+  //Every step is written out in these two loops rather than in helper methods: when
+  //C2 declines to inline a helper, each ByteVector passed to it is boxed on the heap,
+  //and the engine ran at a fifth of its speed in about half of the runs measured.
+
+  public void encryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks) {
+    for (; BLOCKS_PER_VECTOR > 0 && blocks >= BLOCKS_PER_VECTOR; blocks -= BLOCKS_PER_VECTOR, inOff += LANES, outOff += LANES) {
+      ByteVector state = ByteVector.fromArray(SPECIES, in, inOff).lanewise(VectorOperators.XOR, roundKeys[0]);
+      for (int round = 1; round <= 10; round++) {
+        //SubBytes: every piece of the S-box is read, whichever bytes are present
+        ByteVector index = state.and((byte) (LANES - 1));
+        ByteVector piece = state.lanewise(VectorOperators.LSHR, PIECE_SHIFT);
+        ByteVector substituted = index.selectFrom(SBOX[0]);
+        for (int p = 1; p < SBOX.length; p++)
+          substituted = substituted.blend(index.selectFrom(SBOX[p]), piece.eq((byte) p));
+        state = substituted.rearrange(SHIFT_ROWS);
+        if (round < 10) { //no MixColumns in round 10
+          //each byte becomes 2a[r] ^ 3a[r+1] ^ a[r+2] ^ a[r+3] = xtime(a[r] ^ a[r+1]) ^ a[r+1] ^ a[r+2] ^ a[r+3]
+          ByteVector next = state.rearrange(ROTATE1);
+          ByteVector across = state.rearrange(ROTATE2);
+          ByteVector pair = state.lanewise(VectorOperators.XOR, next);
+          pair = pair.lanewise(VectorOperators.LSHL, 1).lanewise(VectorOperators.XOR, pair.lanewise(VectorOperators.ASHR, 7).and((byte) 0x1b)); //xtime
+          state = pair.lanewise(VectorOperators.XOR, next).lanewise(VectorOperators.XOR, across).lanewise(VectorOperators.XOR, across.rearrange(ROTATE1));
+        }
+        state = state.lanewise(VectorOperators.XOR, roundKeys[round]);
+      }
+      state.intoArray(out, outOff);
+    }
+    if (blocks > 0)
+      scalar.encryptBlocks(in, inOff, out, outOff, blocks);
+  }
+
+  public void decryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks) {
+    for (; BLOCKS_PER_VECTOR > 0 && blocks >= BLOCKS_PER_VECTOR; blocks -= BLOCKS_PER_VECTOR, inOff += LANES, outOff += LANES) {
+      ByteVector state = ByteVector.fromArray(SPECIES, in, inOff).lanewise(VectorOperators.XOR, roundKeys[10]);
+      for (int round = 9; round >= 0; round--) {
+        state = state.rearrange(INV_SHIFT_ROWS);
+        ByteVector index = state.and((byte) (LANES - 1));
+        ByteVector piece = state.lanewise(VectorOperators.LSHR, PIECE_SHIFT);
+        ByteVector substituted = index.selectFrom(INV_SBOX[0]);
+        for (int p = 1; p < INV_SBOX.length; p++)
+          substituted = substituted.blend(index.selectFrom(INV_SBOX[p]), piece.eq((byte) p));
+        state = substituted.lanewise(VectorOperators.XOR, roundKeys[round]);
+        if (round > 0) {
+          //InvMixColumns is MixColumns after adding 4(a[r] ^ a[r+2]) to each byte
+          ByteVector four = state.lanewise(VectorOperators.XOR, state.rearrange(ROTATE2));
+          four = four.lanewise(VectorOperators.LSHL, 1).lanewise(VectorOperators.XOR, four.lanewise(VectorOperators.ASHR, 7).and((byte) 0x1b));
+          four = four.lanewise(VectorOperators.LSHL, 1).lanewise(VectorOperators.XOR, four.lanewise(VectorOperators.ASHR, 7).and((byte) 0x1b));
+          state = state.lanewise(VectorOperators.XOR, four);
+          ByteVector next = state.rearrange(ROTATE1);
+          ByteVector across = state.rearrange(ROTATE2);
+          ByteVector pair = state.lanewise(VectorOperators.XOR, next);
+          pair = pair.lanewise(VectorOperators.LSHL, 1).lanewise(VectorOperators.XOR, pair.lanewise(VectorOperators.ASHR, 7).and((byte) 0x1b));
+          state = pair.lanewise(VectorOperators.XOR, next).lanewise(VectorOperators.XOR, across).lanewise(VectorOperators.XOR, across.rearrange(ROTATE1));
+        }
+      }
+      state.intoArray(out, outOff);
+    }
+    if (blocks > 0)
+      scalar.decryptBlocks(in, inOff, out, outOff, blocks);
+  }
+
+  //splits a 256-entry table into registers of LANES entries each
+  private static ByteVector[] pieces(int[] table) {
+    byte[] bytes = new byte[256];
+    for (int i = 0; i < 256; i++)
+      bytes[i] = (byte) table[i];
+    ByteVector[] pieces = new ByteVector[Math.max(1, 256 / LANES)];
+    for (int p = 0; p < pieces.length; p++)
+      pieces[p] = ByteVector.fromArray(SPECIES, Arrays.copyOfRange(bytes, p*LANES, (p + 1)*LANES), 0);
+    return pieces;
+  }
+
+  /**
+   * Checks the engine against the T-table engine on random runs of up to four
+   * registers of blocks, at odd offsets, in both directions, and then times it
+   * against the T-table and bitsliced engines in both directions, 256 blocks
+   * per call as the modes of operation call it.
+   */
+  public static void main(String[] args) {
+    System.out.println("Preferred species: " + SPECIES + ", " + BLOCKS_PER_VECTOR + " blocks per register");
+    Random random = new Random(12);
+    boolean same = true;
+    for (int trial = 0; trial < 50; trial++) {
+      Key k = new Key();
+      VectorEngine vector = new VectorEngine(k);
+      TTableEngine scalar = new TTableEngine(KeyScheduleCache.shared().get(k));
+      int blocks = 1 + random.nextInt(Math.max(1, BLOCKS_PER_VECTOR) * 4 + 3);
+      int off = random.nextInt(16);
+      byte[] plaintext = new byte[off + blocks*16];
+      random.nextBytes(plaintext);
+      byte[] expected = new byte[blocks*16];
+      byte[] actual = new byte[blocks*16];
+      scalar.encryptBlocks(plaintext, off, expected, 0, blocks);
+      vector.encryptBlocks(plaintext, off, actual, 0, blocks);
+      same &= Arrays.equals(expected, actual);
+      vector.decryptBlocks(actual, 0, actual, 0, blocks);
+      same &= Arrays.equals(actual, Arrays.copyOfRange(plaintext, off, plaintext.length));
+    }
+    BlockCipherEngines.check("Vector engine matches T-tables on random runs", same);
+    BlockCipherEngines.check("BlockCipherEngines loads VectorEngine for \"vector\"",
+                             BlockCipherEngines.create("vector", new Key(), RoundTracer.NONE) instanceof VectorEngine);
+
+    Key k = new Key();
+    byte[] data = new byte[16 * 1024 * 1024];
+    BlockCipherEngine[] engines = {new TTableEngine(KeyScheduleCache.shared().get(k)),
+                                   new BitslicedEngine(KeyScheduleCache.shared().get(k), true),
+                                   new VectorEngine(k)};
+    for (BlockCipherEngine engine : engines) {
+      double encrypt = 0;
+      double decrypt = 0;
+      for (int pass = 0; pass < 10; pass++) { //the first passes run before the JIT has compiled the vector code
+        long t = System.nanoTime();
+        for (int off = 0; off < data.length; off += 4096)
+          engine.encryptBlocks(data, off, data, off, 256);
+        encrypt = Math.max(encrypt, data.length / ((System.nanoTime() - t) / 1e9));
+        t = System.nanoTime();
+        for (int off = 0; off < data.length; off += 4096)
+          engine.decryptBlocks(data, off, data, off, 256);
+        decrypt = Math.max(decrypt, data.length / ((System.nanoTime() - t) / 1e9));
+      }
+      System.out.printf("%-10s encrypts at %.0f MB/s, decrypts at %.0f MB/s%n", engine.getName(), encrypt / 1e6, decrypt / 1e6);
+    }
+  }
+}